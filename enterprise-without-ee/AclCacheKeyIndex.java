@@ -0,0 +1,161 @@
+package com.nsn.acl.core.impl;
+
+import com.google.java.contract.Ensures;
+import com.google.java.contract.Requires;
+import net.sf.ehcache.CacheException;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.event.CacheEventListenerAdapter;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+/**
+ * Keys of a cache indexed by the domain entity their values belong to, kept in sync by listening to the cache,
+ * so that values of modified domain entities are evicted without scanning all keys of the cache.
+ */
+class AclCacheKeyIndex
+    extends CacheEventListenerAdapter
+{
+  private final Ehcache cache;
+  private final Function<Element, Long> domainEntityIdOf;
+  private final ConcurrentMap<Long, Set<Object>> keysByDomainEntityId = new ConcurrentHashMap<>();
+  // removal events don't always carry the value, so the domain entity of a key is remembered
+  private final ConcurrentMap<Object, Long> domainEntityIdByKey = new ConcurrentHashMap<>();
+
+  private AclCacheKeyIndex(
+      Ehcache cache,
+      Function<Element, Long> domainEntityIdOf
+  )
+  {
+    this.cache = cache;
+    this.domainEntityIdOf = domainEntityIdOf;
+  }
+
+  /**
+   * Starts indexing the cache, values cached so far are removed since they couldn't be evicted.
+   *
+   * @param domainEntityIdOf domain entity of a cached element
+   */
+  @Requires({
+      "cache != null",
+      "domainEntityIdOf != null"
+  })
+  @Ensures("result != null")
+  static AclCacheKeyIndex register(
+      Ehcache cache,
+      Function<Element, Long> domainEntityIdOf
+  )
+  {
+    AclCacheKeyIndex result = new AclCacheKeyIndex(cache, domainEntityIdOf);
+    cache.getCacheEventNotificationService().registerListener(result);
+    cache.removeAll();
+    return result;
+  }
+
+  /**
+   * Removes all values of the domain entities from the cache.
+   */
+  @Requires("domainEntityIds != null")
+  void evict(long[] domainEntityIds)
+  {
+    for (long domainEntityId : domainEntityIds)
+      for (Object key : getKeys(domainEntityId))
+        cache.remove(key);
+  }
+
+  @Ensures("result != null")
+  private Set<Object> getKeys(long domainEntityId)
+  {
+    Set<Object> result = keysByDomainEntityId.get(domainEntityId);
+    return (null == result) ? Collections.emptySet() : result;
+  }
+
+  @Override
+  public void notifyElementPut(
+      Ehcache cache,
+      Element element
+  )
+      throws
+      CacheException
+  {
+    add(element);
+  }
+
+  @Override
+  public void notifyElementUpdated(
+      Ehcache cache,
+      Element element
+  )
+      throws
+      CacheException
+  {
+    add(element);
+  }
+
+  @Override
+  public void notifyElementRemoved(
+      Ehcache cache,
+      Element element
+  )
+      throws
+      CacheException
+  {
+    remove(element.getObjectKey());
+  }
+
+  @Override
+  public void notifyElementExpired(
+      Ehcache cache,
+      Element element
+  )
+  {
+    remove(element.getObjectKey());
+  }
+
+  @Override
+  public void notifyElementEvicted(
+      Ehcache cache,
+      Element element
+  )
+  {
+    remove(element.getObjectKey());
+  }
+
+  @Override
+  public void notifyRemoveAll(Ehcache cache)
+  {
+    keysByDomainEntityId.clear();
+    domainEntityIdByKey.clear();
+  }
+
+  private void add(Element element)
+  {
+    if (null == element.getObjectValue())
+      return;
+
+    final Long domainEntityId = domainEntityIdOf.apply(element);
+    domainEntityIdByKey.put(element.getObjectKey(), domainEntityId);
+    // within compute, so that a concurrent removal can't drop the set the key is being added to
+    keysByDomainEntityId.compute(domainEntityId, (id, keys) -> {
+      Set<Object> result = (null == keys) ? ConcurrentHashMap.newKeySet() : keys;
+      result.add(element.getObjectKey());
+      return result;
+    });
+  }
+
+  private void remove(Object key)
+  {
+    final Long domainEntityId = domainEntityIdByKey.remove(key);
+    if (null == domainEntityId)
+      return;
+
+    keysByDomainEntityId.computeIfPresent(domainEntityId, (id, keys) -> {
+      keys.remove(key);
+      return keys.isEmpty() ? null : keys;
+    });
+  }
+}
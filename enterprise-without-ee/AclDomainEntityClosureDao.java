@@ -0,0 +1,56 @@
+package com.nsn.acl.core;
+
+import com.google.java.contract.Ensures;
+import com.google.java.contract.Requires;
+
+import java.util.List;
+
+/**
+ * Closure table of the domain entity tree, i.e. (ancestor, descendant, depth) for every pair of a domain entity
+ * and any of its ancestors including itself at depth 0, so ancestry and subtree queries are single indexed lookups
+ * regardless of the tree depth.
+ */
+public interface AclDomainEntityClosureDao
+{
+  /**
+   * Links a new leaf domain entity to its parent and all ancestors of the parent.
+   */
+  @Requires({
+      "domainEntityId != null",
+      "parentDomainEntityId != null"
+  })
+  void create(
+      Long domainEntityId,
+      Long parentDomainEntityId
+  );
+
+  /**
+   * Unlinks the subtree from its previous ancestors and links it to the new parent and all its ancestors,
+   * links within the subtree stay as is.
+   */
+  @Requires({
+      "subtreeRootId != null",
+      "newParentDomainEntityId != null"
+  })
+  void move(
+      Long subtreeRootId,
+      Long newParentDomainEntityId
+  );
+
+  @Requires("domainEntityId != null")
+  void delete(Long domainEntityId);
+
+  /**
+   * @return the domain entity itself followed by its ancestors up to the root
+   */
+  @Requires("domainEntityId != null")
+  @Ensures("result != null")
+  List<Long> getAncestorIds(Long domainEntityId);
+
+  /**
+   * @return the domain entity itself followed by all its descendants ordered by depth
+   */
+  @Requires("domainEntityId != null")
+  @Ensures("result != null")
+  List<Long> getDescendantIds(Long domainEntityId);
+}
@@ -0,0 +1,121 @@
+package com.nsn.acl.core;
+
+import com.google.java.contract.Requires;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Denormalized store of effective (sid, domain entity, mask) grants, i.e. granting ACL entries with inheritance
+ * already applied to every domain entity of the subtree they are defined on.
+ */
+public interface AclEffectiveEntryDao
+{
+  /**
+   * @param sidIds principal SID of a user and group SIDs the user is member of
+   */
+  @Requires({
+      "sidIds != null",
+      "domainEntityId != null",
+      "permissionMask != null"
+  })
+  boolean hasPermission(
+      Collection<Long> sidIds,
+      Long domainEntityId,
+      PermissionMask permissionMask
+  );
+
+  /**
+   * @return the domain entity (the given one or its ancestor) whose entry of any of the SIDs grants the mask,
+   *         null if the mask isn't granted
+   */
+  @Requires({
+      "sidIds != null",
+      "domainEntityId != null",
+      "permissionMask != null"
+  })
+  Long getGrantingDomainEntityId(
+      Collection<Long> sidIds,
+      Long domainEntityId,
+      PermissionMask permissionMask
+  );
+
+  /**
+   * Range scan over the (sid, domain entity class, entity id) index.
+   *
+   * @return ids of entities (not domain entities) of the class any of the SIDs holds the mask on,
+   *         ascending and greater than afterEntityId if it's given
+   */
+  @Requires({
+      "sidIds != null",
+      "domainEntityClassId != null",
+      "permissionMask != null",
+      "limit > 0"
+  })
+  List<Long> getEntityIds(
+      Collection<Long> sidIds,
+      Long domainEntityClassId,
+      PermissionMask permissionMask,
+      Long afterEntityId,
+      int limit
+  );
+
+  /**
+   * Set-based counterpart of {@link #hasPermission} used to fill caches in bulk.
+   *
+   * @return up to limit domain entities of the class any of the SIDs holds the mask on
+   */
+  @Requires({
+      "sidIds != null",
+      "domainEntityClassId != null",
+      "permissionMask != null",
+      "limit > 0"
+  })
+  List<Long> getDomainEntityIds(
+      Collection<Long> sidIds,
+      Long domainEntityClassId,
+      PermissionMask permissionMask,
+      int limit
+  );
+
+  /**
+   * Range scan over the (domain entity, sid) reverse index.
+   *
+   * @return principal SIDs (i.e. user ids) holding the mask on the domain entity directly or as members of
+   *         a group SID holding it, ascending and greater than afterSid if it's given
+   */
+  @Requires({
+      "domainEntityId != null",
+      "permissionMask != null",
+      "limit > 0"
+  })
+  List<String> getPrincipalSids(
+      Long domainEntityId,
+      PermissionMask permissionMask,
+      String afterSid,
+      int limit
+  );
+
+  /**
+   * Recomputes effective grants of all SIDs for the subtree rooted at subtreeRootId,
+   * e.g. after it has been created or moved to another parent.
+   */
+  @Requires("subtreeRootId != null")
+  void recomputeSubtree(Long subtreeRootId);
+
+  /**
+   * Recomputes effective grants of the given SIDs only for the subtree rooted at subtreeRootId,
+   * e.g. after entries of these SIDs have been created or deleted on subtreeRootId.
+   */
+  @Requires({
+      "subtreeRootId != null",
+      "sidIds != null"
+  })
+  void recomputeSubtree(
+      Long subtreeRootId,
+      Collection<Long> sidIds
+  );
+
+  @Requires("domainEntityId != null")
+  void deleteByDomainEntity(Long domainEntityId);
+}
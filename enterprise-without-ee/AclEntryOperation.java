@@ -0,0 +1,87 @@
+package com.nsn.acl.core;
+
+import com.google.java.contract.Requires;
+import com.nsn.common.core.Entity;
+
+/**
+ * Grant or revoke of an entry of a user, see {@link AclService#executeEntryOperations(String, java.util.List)}.
+ */
+public class AclEntryOperation
+{
+  private final boolean creating;
+  private final Class<? extends Entity> entityClass;
+  private final Long entityId;
+  private final AclEntryTemplate entryTemplate;
+  private final Long entryTemplateId;
+
+  private AclEntryOperation(
+      boolean creating,
+      Class<? extends Entity> entityClass,
+      Long entityId,
+      AclEntryTemplate entryTemplate,
+      Long entryTemplateId
+  )
+  {
+    this.creating = creating;
+    this.entityClass = entityClass;
+    this.entityId = entityId;
+    this.entryTemplate = entryTemplate;
+    this.entryTemplateId = entryTemplateId;
+  }
+
+  @Requires({
+      "entityClass != null",
+      "entityId != null",
+      "entryTemplate != null"
+  })
+  public static AclEntryOperation createEntry(
+      Class<? extends Entity> entityClass,
+      Long entityId,
+      AclEntryTemplate entryTemplate
+  )
+  {
+    return new AclEntryOperation(true, entityClass, entityId, entryTemplate, entryTemplate.getId());
+  }
+
+  @Requires({
+      "entityClass != null",
+      "entityId != null",
+      "entryTemplateId != null"
+  })
+  public static AclEntryOperation deleteEntry(
+      Class<? extends Entity> entityClass,
+      Long entityId,
+      Long entryTemplateId
+  )
+  {
+    return new AclEntryOperation(false, entityClass, entityId, null, entryTemplateId);
+  }
+
+  public boolean isCreating()
+  {
+    return creating;
+  }
+
+  public Class<? extends Entity> getEntityClass()
+  {
+    return entityClass;
+  }
+
+  public Long getEntityId()
+  {
+    return entityId;
+  }
+
+  /**
+   * @return null for deletion
+   */
+  public AclEntryTemplate getEntryTemplate()
+  {
+    return entryTemplate;
+  }
+
+  public Long getEntryTemplateId()
+  {
+    return entryTemplateId;
+  }
+}
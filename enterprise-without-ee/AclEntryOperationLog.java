@@ -0,0 +1,134 @@
+package com.nsn.acl.core.impl;
+
+import com.google.java.contract.Ensures;
+import com.google.java.contract.Requires;
+import com.nsn.acl.core.AclEntry;
+
+import java.util.*;
+
+/**
+ * Entry operations of a modification context folded in the order they are made into a net state per
+ * (domain entity, sid, permission, template), so any sequence of grants and revokes within one context flushes
+ * to the same result as if every operation had been flushed on its own.
+ */
+class AclEntryOperationLog
+{
+  private final Map<List<Long>, NetEntry> netEntries = new LinkedHashMap<>();
+  private final Set<AclEntry> loggedEntries = Collections.newSetFromMap(new IdentityHashMap<>());
+
+  @Requires("entry != null")
+  void createEntry(AclEntry entry)
+  {
+    loggedEntries.add(entry);
+    NetEntry netEntry = netEntries.computeIfAbsent(getKey(entry), key -> new NetEntry());
+    if (null != netEntry.createdEntry)
+      // granted twice, one entry is enough
+      return;
+
+    if (netEntry.deletedEntries.isEmpty())
+      netEntry.createdEntry = entry;
+    else
+    {
+      // deleted and granted again, one of the existing entries survives as is
+      Iterator<AclEntry> it = netEntry.deletedEntries.values().iterator();
+      it.next();
+      it.remove();
+    }
+  }
+
+  /**
+   * @param entry either an existing entry or one created within the same context and never flushed
+   */
+  @Requires("entry != null")
+  void deleteEntry(AclEntry entry)
+  {
+    loggedEntries.add(entry);
+    NetEntry netEntry = netEntries.computeIfAbsent(getKey(entry), key -> new NetEntry());
+    if (null != entry.getId())
+      netEntry.deletedEntries.putIfAbsent(entry.getId(), entry);
+    else if (entry == netEntry.createdEntry)
+      netEntry.createdEntry = null;
+  }
+
+  /**
+   * @return true if an operation on the very entry has been logged
+   */
+  @Requires("entry != null")
+  boolean isLogged(AclEntry entry)
+  {
+    return loggedEntries.contains(entry);
+  }
+
+  /**
+   * @return true if the existing entry is deleted as of the last operation
+   */
+  @Requires({
+      "entry != null",
+      "entry.getId() != null"
+  })
+  boolean isDeleted(AclEntry entry)
+  {
+    NetEntry netEntry = netEntries.get(getKey(entry));
+    return null != netEntry && netEntry.deletedEntries.containsKey(entry.getId());
+  }
+
+  /**
+   * @param domainEntityId null to look at all domain entities
+   * @return entries created as of the last operation which aren't flushed yet
+   */
+  @Requires({
+      "sidId != null",
+      "entryTemplateId != null"
+  })
+  @Ensures("result != null")
+  List<AclEntry> getCreatedEntries(
+      Long domainEntityId,
+      Long sidId,
+      Long entryTemplateId
+  )
+  {
+    List<AclEntry> result = new ArrayList<>();
+    netEntries.forEach((key, netEntry) -> {
+      if (null != netEntry.createdEntry && (null == domainEntityId || domainEntityId.equals(key.get(0)))
+          && sidId.equals(key.get(1)) && entryTemplateId.equals(key.get(3)))
+        result.add(netEntry.createdEntry);
+    });
+
+    return result;
+  }
+
+  /**
+   * @return net modifications per domain entity in the order the domain entities were first touched,
+   *         ones without any net change are omitted
+   */
+  @Ensures("result != null")
+  List<AclNetModification> getNetModifications()
+  {
+    final Map<Long, AclNetModification> result = new LinkedHashMap<>();
+    netEntries.forEach((key, netEntry) -> {
+      if (netEntry.deletedEntries.isEmpty() && null == netEntry.createdEntry)
+        return;
+
+      AclNetModification netModification = result.computeIfAbsent(key.get(0), AclNetModification::new);
+      netModification.getEntriesToDelete().addAll(netEntry.deletedEntries.values());
+      if (null != netEntry.createdEntry)
+        netModification.getEntriesToCreate().add(netEntry.createdEntry);
+    });
+
+    return new ArrayList<>(result.values());
+  }
+
+  private static List<Long> getKey(AclEntry entry)
+  {
+    return Arrays.asList(entry.getDomainEntity().getId(), entry.getSid().getId(), entry.getPermission().getId(),
+        entry.getEntryTemplate().getId());
+  }
+
+  private static class NetEntry
+  {
+    // existing entries deleted as of the last operation
+    private final Map<Long, AclEntry> deletedEntries = new LinkedHashMap<>();
+    // entry to create as of the last operation
+    private AclEntry createdEntry;
+  }
+}
@@ -0,0 +1,50 @@
+package com.nsn.acl.core;
+
+import java.io.Serializable;
+
+/**
+ * Lightweight read-only view of {@link AclEntry} which isn't attached to the persistence session.
+ */
+public class AclEntryProjection
+    implements Serializable
+{
+  private final Long entryId;
+  private final Long domainEntityId;
+  private final Long permissionId;
+
+  public AclEntryProjection(
+      Long entryId,
+      Long domainEntityId,
+      Long permissionId
+  )
+  {
+    this.entryId = entryId;
+    this.domainEntityId = domainEntityId;
+    this.permissionId = permissionId;
+  }
+
+  public Long getEntryId()
+  {
+    return entryId;
+  }
+
+  public Long getDomainEntityId()
+  {
+    return domainEntityId;
+  }
+
+  public Long getPermissionId()
+  {
+    return permissionId;
+  }
+
+  @Override
+  public String toString()
+  {
+    return "AclEntryProjection{" +
+        "entryId=" + entryId +
+        ", domainEntityId=" + domainEntityId +
+        ", permissionId=" + permissionId +
+        '}';
+  }
+}
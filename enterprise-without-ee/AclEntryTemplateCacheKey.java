@@ -0,0 +1,57 @@
+package com.nsn.acl.core.impl;
+
+import com.google.java.contract.Requires;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * Key of entry templates cached by domain entity and principal SID.
+ */
+public class AclEntryTemplateCacheKey
+    implements Serializable
+{
+  private final Long domainEntityId;
+  private final String sid;
+
+  @Requires({
+      "domainEntityId != null",
+      "sid != null"
+  })
+  public AclEntryTemplateCacheKey(
+      Long domainEntityId,
+      String sid
+  )
+  {
+    this.domainEntityId = domainEntityId;
+    this.sid = sid;
+  }
+
+  public Long getDomainEntityId()
+  {
+    return domainEntityId;
+  }
+
+  public String getSid()
+  {
+    return sid;
+  }
+
+  @Override
+  public boolean equals(Object o)
+  {
+    if (this == o)
+      return true;
+    if (null == o || getClass() != o.getClass())
+      return false;
+
+    AclEntryTemplateCacheKey that = (AclEntryTemplateCacheKey) o;
+    return domainEntityId.equals(that.domainEntityId) && sid.equals(that.sid);
+  }
+
+  @Override
+  public int hashCode()
+  {
+    return Objects.hash(domainEntityId, sid);
+  }
+}
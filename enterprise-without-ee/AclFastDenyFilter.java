@@ -0,0 +1,276 @@
+package com.nsn.acl.core.impl;
+
+import com.google.java.contract.Requires;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Supplier;
+
+/**
+ * Per-user Bloom filters over domain entities carrying granting entries of the user's SIDs. If neither
+ * the domain entity nor any of its ancestors can be in the filter, the user has no permission on it
+ * and the DB doesn't need to be asked.
+ * <p>
+ * Filters only ever grow: domain entities with modified entries are added to filters of the affected users,
+ * deletions merely leave false positives behind. A filter is dropped and rebuilt from the DB once it has taken more
+ * elements than it was sized for. Filters and ancestor chains are registered first and dropped again if
+ * a modification has come in while they were being loaded, so no modification is ever missed.
+ */
+public class AclFastDenyFilter
+{
+  private static final int MIN_CAPACITY = 1024;
+
+  private final int maxElementsPerUser;
+  private final double falsePositiveRate;
+  private final int maxAncestorChains;
+  private final ConcurrentMap<String, Filter> filters = new ConcurrentHashMap<>();
+  private final ConcurrentMap<Long, long[]> ancestorChains = new ConcurrentHashMap<>();
+  // bumped per user by every modification, a filter loaded across a bump may have missed it
+  private final AclHasPermissionCacheGenerations filterGenerations = new AclHasPermissionCacheGenerations();
+  // bumped by every tree modification, an ancestor chain loaded across a bump may be outdated
+  private final AtomicLong ancestorChainGeneration = new AtomicLong();
+
+  /**
+   * @param maxElementsPerUser users with more granting domain entities aren't filtered at all
+   * @param falsePositiveRate  chance of a filter to let an unrelated domain entity through to the DB
+   * @param maxAncestorChains  number of cached ancestor chains
+   */
+  @Requires({
+      "maxElementsPerUser > 0",
+      "falsePositiveRate > 0 && falsePositiveRate < 1",
+      "maxAncestorChains > 0"
+  })
+  public AclFastDenyFilter(
+      int maxElementsPerUser,
+      double falsePositiveRate,
+      int maxAncestorChains
+  )
+  {
+    this.maxElementsPerUser = maxElementsPerUser;
+    this.falsePositiveRate = falsePositiveRate;
+    this.maxAncestorChains = maxAncestorChains;
+  }
+
+  /**
+   * @param grantingDomainEntityIdsLoader loads domain entities carrying granting entries of the user's SIDs
+   * @param ancestorIdsLoader             loads the domain entity and all its ancestors
+   * @return true if the user surely has no permission on the domain entity
+   */
+  @Requires({
+      "userId != null",
+      "domainEntityId != null",
+      "grantingDomainEntityIdsLoader != null",
+      "ancestorIdsLoader != null"
+  })
+  boolean isDenied(
+      String userId,
+      Long domainEntityId,
+      Supplier<List<Long>> grantingDomainEntityIdsLoader,
+      Supplier<List<Long>> ancestorIdsLoader
+  )
+  {
+    Filter filter = filters.get(userId);
+    if (null == filter)
+    {
+      final long loadedAt = filterGenerations.get(userId);
+      final List<Long> grantingDomainEntityIds = grantingDomainEntityIdsLoader.get();
+      if (grantingDomainEntityIds.size() > maxElementsPerUser)
+        filter = Filter.NONE;
+      else
+      {
+        filter = new Filter(Math.max(MIN_CAPACITY, 2 * grantingDomainEntityIds.size()), falsePositiveRate);
+        grantingDomainEntityIds.forEach(filter::add);
+      }
+      // a modification either sees the registered filter or bumps the generation before the check below
+      filters.put(userId, filter);
+      if (loadedAt != filterGenerations.get(userId))
+      {
+        filters.remove(userId, filter);
+        return false;
+      }
+    }
+    if (Filter.NONE == filter)
+      return false;
+
+    long[] ancestorIds = ancestorChains.get(domainEntityId);
+    if (null == ancestorIds)
+    {
+      final long loadedAt = ancestorChainGeneration.get();
+      ancestorIds = ancestorIdsLoader.get().stream().mapToLong(Long::longValue).toArray();
+      if (ancestorChains.size() >= maxAncestorChains)
+        ancestorChains.clear();
+      ancestorChains.put(domainEntityId, ancestorIds);
+      if (loadedAt != ancestorChainGeneration.get())
+      {
+        ancestorChains.remove(domainEntityId, ancestorIds);
+        return false;
+      }
+    }
+
+    for (long ancestorId : ancestorIds)
+      if (filter.mightContain(ancestorId))
+        return false;
+
+    return true;
+  }
+
+  /**
+   * Domain entities might have got new granting entries of SIDs of the given users.
+   *
+   * @param userIds affected users including members of affected groups, null if they are unknown
+   */
+  @Requires("domainEntityIds != null")
+  void onEntryModification(
+      long[] domainEntityIds,
+      String[] userIds
+  )
+  {
+    if (0 == domainEntityIds.length)
+      return;
+
+    if (null == userIds)
+    {
+      filterGenerations.bumpAll();
+      filters.forEach((userId, filter) -> add(userId, filter, domainEntityIds));
+    }
+    else
+      for (String userId : userIds)
+      {
+        filterGenerations.bump(userId);
+        Filter filter = filters.get(userId);
+        if (null != filter)
+          add(userId, filter, domainEntityIds);
+      }
+  }
+
+  /**
+   * Domain entities might have got a new parent or have been deleted, so have their descendants.
+   */
+  @Requires("domainEntityIds != null")
+  void onTreeModification(long[] domainEntityIds)
+  {
+    if (0 == domainEntityIds.length)
+      return;
+
+    ancestorChainGeneration.incrementAndGet();
+    Set<Long> modifiedDomainEntityIds = new HashSet<>(domainEntityIds.length * 2);
+    for (long domainEntityId : domainEntityIds)
+      modifiedDomainEntityIds.add(domainEntityId);
+    // a reparented domain entity changes ancestors of its whole subtree
+    ancestorChains.values().removeIf(ancestorIds -> {
+      for (long ancestorId : ancestorIds)
+        if (modifiedDomainEntityIds.contains(ancestorId))
+          return true;
+      return false;
+    });
+  }
+
+  /**
+   * SIDs of the user might have been changed, e.g. by a group membership.
+   */
+  @Requires("userId != null")
+  void invalidate(String userId)
+  {
+    filterGenerations.bump(userId);
+    filters.remove(userId);
+  }
+
+  void invalidate()
+  {
+    filterGenerations.bumpAll();
+    ancestorChainGeneration.incrementAndGet();
+    filters.clear();
+    ancestorChains.clear();
+  }
+
+  private void add(
+      String userId,
+      Filter filter,
+      long[] domainEntityIds
+  )
+  {
+    if (Filter.NONE == filter)
+      return;
+
+    for (long domainEntityId : domainEntityIds)
+      filter.add(domainEntityId);
+    if (filter.isFull())
+      filters.remove(userId, filter);
+  }
+
+  private static class Filter
+  {
+    private static final Filter NONE = new Filter(1, 0.5);
+
+    private final AtomicLongArray bits;
+    private final int bitCount;
+    private final int hashCount;
+    private final int capacity;
+    private final AtomicInteger size = new AtomicInteger();
+
+    private Filter(
+        int capacity,
+        double falsePositiveRate
+    )
+    {
+      this.capacity = capacity;
+      bitCount = (int) Math.max(64, Math.ceil(-capacity * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2))));
+      hashCount = (int) Math.max(1, Math.round((double) bitCount / capacity * Math.log(2)));
+      bits = new AtomicLongArray((bitCount + 63) / 64);
+    }
+
+    private void add(long value)
+    {
+      final long hash = mix(value);
+      final int hash1 = (int) hash;
+      final int hash2 = (int) (hash >>> 32);
+      for (int i = 0; i < hashCount; i++)
+      {
+        final int bit = ((hash1 + i * hash2) & Integer.MAX_VALUE) % bitCount;
+        final long mask = 1L << bit;
+        long word;
+        do
+          word = bits.get(bit >>> 6);
+        while ((word & mask) == 0 && !bits.compareAndSet(bit >>> 6, word, word | mask));
+      }
+      size.incrementAndGet();
+    }
+
+    private boolean mightContain(long value)
+    {
+      final long hash = mix(value);
+      final int hash1 = (int) hash;
+      final int hash2 = (int) (hash >>> 32);
+      for (int i = 0; i < hashCount; i++)
+      {
+        final int bit = ((hash1 + i * hash2) & Integer.MAX_VALUE) % bitCount;
+        if ((bits.get(bit >>> 6) & (1L << bit)) == 0)
+          return false;
+      }
+
+      return true;
+    }
+
+    private boolean isFull()
+    {
+      return size.get() > capacity;
+    }
+
+    private static long mix(long value)
+    {
+      // finalizer of MurmurHash3, ids are sequential and need spreading
+      value ^= value >>> 33;
+      value *= 0xff51afd7ed558ccdL;
+      value ^= value >>> 33;
+      value *= 0xc4ceb3f99e3b2d87L;
+      value ^= value >>> 33;
+      return value;
+    }
+  }
+}
@@ -0,0 +1,197 @@
+package com.nsn.acl.core.impl;
+
+import com.google.java.contract.Ensures;
+import com.google.java.contract.Requires;
+import com.nsn.acl.core.AclEntryOperation;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Queues entry operations per user and drains every queue by a single worker at a time, so that concurrent
+ * operations on the same user share one transaction and one user lock instead of serializing behind it.
+ * Operations of a batch are executed in the order they were submitted and queues of idle users are dropped.
+ */
+class AclGroupCommitter
+{
+  interface BatchExecutor
+  {
+    void execute(
+        String userId,
+        List<AclEntryOperation> operations
+    )
+        throws
+        Exception;
+  }
+
+  private final Executor executor;
+  private final int maxBatchSize;
+  private final BatchExecutor batchExecutor;
+  private final ConcurrentMap<String, UserQueue> queues = new ConcurrentHashMap<>();
+
+  @Requires({
+      "executor != null",
+      "maxBatchSize > 0",
+      "batchExecutor != null"
+  })
+  AclGroupCommitter(
+      Executor executor,
+      int maxBatchSize,
+      BatchExecutor batchExecutor
+  )
+  {
+    this.executor = executor;
+    this.maxBatchSize = maxBatchSize;
+    this.batchExecutor = batchExecutor;
+  }
+
+  /**
+   * @return future completed once the transaction containing the operation is committed, which is the caller's
+   *         one if the executor rejects the drain and the caller is within a transaction
+   */
+  @Requires({
+      "userId != null",
+      "operation != null"
+  })
+  @Ensures("result != null")
+  CompletableFuture<Void> submit(
+      String userId,
+      AclEntryOperation operation
+  )
+  {
+    PendingOperation pendingOperation = new PendingOperation(operation);
+    // added within compute, so a queue is never dropped between being looked up and getting the operation
+    UserQueue queue = queues.compute(userId, (id, existingQueue) -> {
+      UserQueue result = (null == existingQueue) ? new UserQueue() : existingQueue;
+      result.operations.add(pendingOperation);
+      return result;
+    });
+    schedule(userId, queue);
+
+    return pendingOperation.future;
+  }
+
+  private void schedule(
+      String userId,
+      UserQueue queue
+  )
+  {
+    if (queue.isScheduled.compareAndSet(false, true))
+      try
+      {
+        executor.execute(() -> drain(userId, queue));
+      }
+      catch (RejectedExecutionException ex)
+      {
+        // overloaded or shutting down, the caller does the work itself
+        drain(userId, queue);
+      }
+  }
+
+  private void drain(
+      String userId,
+      UserQueue queue
+  )
+  {
+    try
+    {
+      List<PendingOperation> batch = new ArrayList<>();
+      PendingOperation pendingOperation;
+      while (batch.size() < maxBatchSize && null != (pendingOperation = queue.operations.poll()))
+        batch.add(pendingOperation);
+
+      if (!batch.isEmpty())
+        try
+        {
+          execute(userId, batch);
+        }
+        catch (Exception ex)
+        {
+          if (1 == batch.size())
+            batch.get(0).future.completeExceptionally(ex);
+          else
+            // don't let a single bad operation fail the others
+            for (PendingOperation operation : batch)
+              try
+              {
+                execute(userId, Collections.singletonList(operation));
+              }
+              catch (Exception operationEx)
+              {
+                operation.future.completeExceptionally(operationEx);
+              }
+        }
+    }
+    finally
+    {
+      queue.isScheduled.set(false);
+      // operations might have been added after the last poll but before the flag was reset
+      if (!queue.operations.isEmpty())
+        schedule(userId, queue);
+      else
+        // a submit racing with this sees either the queue still registered or no queue and creates a new one,
+        // a drain scheduled meanwhile owns the queue and drops it itself, so there is never a second worker
+        queues.computeIfPresent(userId, (id, existingQueue) -> (existingQueue == queue
+            && existingQueue.operations.isEmpty() && !existingQueue.isScheduled.get()) ? null : existingQueue);
+    }
+  }
+
+  private void execute(
+      String userId,
+      List<PendingOperation> batch
+  )
+      throws
+      Exception
+  {
+    List<AclEntryOperation> operations = new ArrayList<>(batch.size());
+    for (PendingOperation pendingOperation : batch)
+      operations.add(pendingOperation.operation);
+
+    batchExecutor.execute(userId, operations);
+
+    if (!TransactionSynchronizationManager.isSynchronizationActive())
+    {
+      for (PendingOperation pendingOperation : batch)
+        pendingOperation.future.complete(null);
+      return;
+    }
+
+    // drained by a caller within its own transaction, see schedule, which isn't committed yet
+    TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter()
+    {
+      @Override
+      public void afterCompletion(int status)
+      {
+        for (PendingOperation pendingOperation : batch)
+          if (STATUS_COMMITTED == status)
+            pendingOperation.future.complete(null);
+          else
+            pendingOperation.future.completeExceptionally(
+                new IllegalStateException("Transaction of the entry operation has been rolled back."));
+      }
+    });
+  }
+
+  private static class UserQueue
+  {
+    private final Queue<PendingOperation> operations = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean isScheduled = new AtomicBoolean();
+  }
+
+  private static class PendingOperation
+  {
+    private final AclEntryOperation operation;
+    private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+    private PendingOperation(AclEntryOperation operation)
+    {
+      this.operation = operation;
+    }
+  }
+}
@@ -0,0 +1,146 @@
+package com.nsn.acl.core.impl;
+
+import com.google.java.contract.Ensures;
+import com.google.java.contract.Requires;
+import net.sf.ehcache.Ehcache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Single element budget shared by all per-user permission caches. Every rebalance gives each cache a share of
+ * the budget proportional to its score, a decaying sum of recent accesses weighted by the recent hit rate,
+ * so hot users keep large working sets while idle users' caches are dropped. Rebalances run in the background,
+ * permission checks only count accesses.
+ */
+public class AclHasPermissionCacheBudget
+{
+  private static final Logger log = LoggerFactory.getLogger(AclHasPermissionCacheBudget.class);
+
+  private static final double IDLE_SCORE = 1;
+
+  private final ScheduledExecutorService scheduler;
+  private final long maxEntries;
+  private final long rebalanceIntervalMillis;
+  private final double decay;
+  private final ConcurrentMap<String, Usage> usages = new ConcurrentHashMap<>();
+
+  /**
+   * @param scheduler               runs rebalances
+   * @param maxEntries              total number of elements in all permission caches
+   * @param rebalanceIntervalMillis how often caches are resized
+   * @param decay                   share of the previous score kept by a rebalance, from 0 to 1
+   */
+  @Requires({
+      "scheduler != null",
+      "maxEntries > 0",
+      "rebalanceIntervalMillis > 0",
+      "decay >= 0 && decay < 1"
+  })
+  public AclHasPermissionCacheBudget(
+      ScheduledExecutorService scheduler,
+      long maxEntries,
+      long rebalanceIntervalMillis,
+      double decay
+  )
+  {
+    this.scheduler = scheduler;
+    this.maxEntries = maxEntries;
+    this.rebalanceIntervalMillis = rebalanceIntervalMillis;
+    this.decay = decay;
+  }
+
+  /**
+   * Runs the rebalance periodically, it's expected to call {@link #rebalance(Map)}.
+   */
+  @Requires("rebalance != null")
+  void schedule(Runnable rebalance)
+  {
+    scheduler.scheduleWithFixedDelay(() -> {
+      try
+      {
+        rebalance.run();
+      }
+      catch (RuntimeException ex)
+      {
+        // a failed run must not cancel the following ones, caches keep their sizes until then
+        log.warn("Rebalance of permission caches failed, sizes are kept until the next run.", ex);
+      }
+    }, rebalanceIntervalMillis, rebalanceIntervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * @return size of a new cache until the next rebalance
+   */
+  @Ensures("result > 0")
+  long getInitialEntries(int cacheCount)
+  {
+    return Math.max(1, maxEntries / (cacheCount + 1));
+  }
+
+  @Requires("cacheKey != null")
+  void recordAccess(
+      String cacheKey,
+      boolean isHit
+  )
+  {
+    Usage usage = usages.computeIfAbsent(cacheKey, key -> new Usage());
+    usage.accesses.increment();
+    if (isHit)
+      usage.hits.increment();
+  }
+
+  /**
+   * @return keys of idle caches, they are given no share and are to be dropped by the caller
+   */
+  @Requires("caches != null")
+  @Ensures("result != null")
+  Set<String> rebalance(Map<String, Ehcache> caches)
+  {
+    Map<String, Double> scores = new HashMap<>();
+    double totalScore = 0;
+    for (String cacheKey : caches.keySet())
+    {
+      Usage usage = usages.computeIfAbsent(cacheKey, key -> new Usage());
+      final long accesses = usage.accesses.sumThenReset();
+      final long hits = usage.hits.sumThenReset();
+      final double hitRate = (0 == accesses) ? 0 : (double) hits / accesses;
+      usage.score = usage.score * decay + accesses * (1 + hitRate);
+      if (usage.score >= IDLE_SCORE)
+      {
+        scores.put(cacheKey, usage.score);
+        totalScore += usage.score;
+      }
+    }
+    usages.keySet().retainAll(scores.keySet());
+
+    Set<String> result = new HashSet<>();
+    for (Map.Entry<String, Ehcache> cache : caches.entrySet())
+    {
+      final Double score = scores.get(cache.getKey());
+      if (null == score)
+        result.add(cache.getKey());
+      else
+        cache.getValue().getCacheConfiguration()
+            .setMaxEntriesLocalHeap(Math.max(1, (long) (maxEntries * score / totalScore)));
+    }
+
+    return result;
+  }
+
+  private static class Usage
+  {
+    private final LongAdder accesses = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private volatile double score;
+  }
+}
@@ -0,0 +1,38 @@
+package com.nsn.acl.core.impl;
+
+import com.google.java.contract.Requires;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generation counters of permission caches, bumped before a cache is invalidated. A value loaded from the DB
+ * is only kept in the cache if the generation of the user is the same after it has been put as it was before
+ * it was loaded, so a load racing with a committed modification never survives the invalidation.
+ */
+class AclHasPermissionCacheGenerations
+{
+  private final AtomicLong generation = new AtomicLong();
+  private final ConcurrentMap<String, AtomicLong> userGenerations = new ConcurrentHashMap<>();
+
+  @Requires("userId != null")
+  long get(String userId)
+  {
+    // global part first, a bump of all caches in between can only make the result look changed
+    final long result = generation.get();
+    AtomicLong userGeneration = userGenerations.get(userId);
+    return (null == userGeneration) ? result : result + userGeneration.get();
+  }
+
+  @Requires("userId != null")
+  void bump(String userId)
+  {
+    userGenerations.computeIfAbsent(userId, id -> new AtomicLong()).incrementAndGet();
+  }
+
+  void bumpAll()
+  {
+    generation.incrementAndGet();
+  }
+}
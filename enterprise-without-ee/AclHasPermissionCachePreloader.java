@@ -0,0 +1,178 @@
+package com.nsn.acl.core.impl;
+
+import com.google.java.contract.Ensures;
+import com.google.java.contract.Requires;
+import com.nsn.acl.core.PermissionMask;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Fills a freshly created per-user permission cache in the background with grants of the (domain entity class,
+ * mask) pairs most permission checks miss on, so the first requests of a user don't pay for a row of cold
+ * lookups one after another.
+ */
+public class AclHasPermissionCachePreloader
+{
+  private final Executor executor;
+  private final int maxClassMasks;
+  private final int maxEntriesPerClassMask;
+  private final ConcurrentMap<ClassMask, LongAdder> missCounts = new ConcurrentHashMap<>();
+  private final Set<String> scheduledUserIds = ConcurrentHashMap.newKeySet();
+  private long decayIntervalMillis = TimeUnit.MINUTES.toMillis(10);
+  private final AtomicLong decayedAt = new AtomicLong(System.currentTimeMillis());
+
+  /**
+   * @param executor               runs preloads, a rejected preload is simply skipped
+   * @param maxClassMasks          how many of the most missed (domain entity class, mask) pairs are preloaded
+   * @param maxEntriesPerClassMask upper bound of granted domain entities preloaded per pair
+   */
+  @Requires({
+      "executor != null",
+      "maxClassMasks > 0",
+      "maxEntriesPerClassMask > 0"
+  })
+  public AclHasPermissionCachePreloader(
+      Executor executor,
+      int maxClassMasks,
+      int maxEntriesPerClassMask
+  )
+  {
+    this.executor = executor;
+    this.maxClassMasks = maxClassMasks;
+    this.maxEntriesPerClassMask = maxEntriesPerClassMask;
+  }
+
+  /**
+   * @param decayIntervalMillis miss counts are halved this often, so that pairs which stopped being missed
+   *                            make room for new ones
+   */
+  @Requires("decayIntervalMillis > 0")
+  public void setDecayIntervalMillis(long decayIntervalMillis)
+  {
+    this.decayIntervalMillis = decayIntervalMillis;
+  }
+
+  int getMaxEntriesPerClassMask()
+  {
+    return maxEntriesPerClassMask;
+  }
+
+  @Requires({
+      "domainEntityClassId != null",
+      "permissionMask != null"
+  })
+  void recordMiss(
+      Long domainEntityClassId,
+      PermissionMask permissionMask
+  )
+  {
+    decay();
+    missCounts.computeIfAbsent(new ClassMask(domainEntityClassId, permissionMask), key -> new LongAdder())
+        .increment();
+  }
+
+  /**
+   * @return the most missed pairs, most missed first
+   */
+  @Ensures("result != null")
+  List<ClassMask> getHotClassMasks()
+  {
+    decay();
+    // counts keep changing, sorting by live ones would break the comparator contract
+    final Map<ClassMask, Long> counts = new HashMap<>();
+    missCounts.forEach((classMask, count) -> counts.put(classMask, count.sum()));
+    List<ClassMask> result = new ArrayList<>(counts.keySet());
+    result.sort(Comparator.comparing(counts::get, Comparator.reverseOrder()));
+
+    return (result.size() > maxClassMasks) ? new ArrayList<>(result.subList(0, maxClassMasks)) : result;
+  }
+
+  private void decay()
+  {
+    final long now = System.currentTimeMillis();
+    final long previousDecayedAt = decayedAt.get();
+    if (now - previousDecayedAt < decayIntervalMillis || !decayedAt.compareAndSet(previousDecayedAt, now))
+      return;
+
+    // a miss recorded on a counter being dropped is lost, which doesn't matter for a ranking
+    missCounts.values().forEach(count -> count.add(-(count.sum() / 2)));
+    missCounts.values().removeIf(count -> count.sum() <= 0);
+  }
+
+  /**
+   * Schedules a preload of the user unless one is already pending.
+   */
+  @Requires({
+      "userId != null",
+      "preload != null"
+  })
+  void schedule(
+      String userId,
+      Consumer<String> preload
+  )
+  {
+    if (!scheduledUserIds.add(userId))
+      return;
+
+    try
+    {
+      executor.execute(() -> {
+        try
+        {
+          preload.accept(userId);
+        }
+        finally
+        {
+          scheduledUserIds.remove(userId);
+        }
+      });
+    }
+    catch (RejectedExecutionException ex)
+    {
+      // overloaded or shutting down, the cache is filled on demand as usual
+      scheduledUserIds.remove(userId);
+    }
+  }
+
+  static class ClassMask
+  {
+    final Long domainEntityClassId;
+    final PermissionMask permissionMask;
+
+    private ClassMask(
+        Long domainEntityClassId,
+        PermissionMask permissionMask
+    )
+    {
+      this.domainEntityClassId = domainEntityClassId;
+      this.permissionMask = permissionMask;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+      if (this == o)
+        return true;
+      if (!(o instanceof ClassMask))
+        return false;
+
+      ClassMask that = (ClassMask) o;
+      return domainEntityClassId.equals(that.domainEntityClassId)
+          && permissionMask.getMask() == that.permissionMask.getMask();
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return 31 * domainEntityClassId.hashCode() + Long.hashCode(permissionMask.getMask());
+    }
+  }
+}
@@ -0,0 +1,664 @@
+package com.nsn.acl.core.impl;
+
+import com.google.common.primitives.Primitives;
+import com.google.java.contract.Ensures;
+import com.google.java.contract.Requires;
+import com.nsn.acl.core.*;
+import com.nsn.acl.core.jms.AclDomainEntityDeletionMessageSender;
+import com.nsn.acl.core.jms.AclDomainEntityModificationMessageSender;
+import com.nsn.auth.core.User;
+import com.nsn.auth.core.UserService;
+import com.nsn.common.core.Entity;
+import com.nsn.common.core.RootEntity;
+import org.springframework.dao.CannotAcquireLockException;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * In-memory stand-ins for the DAOs, the user service and the JMS senders of {@link AclServiceImpl}, so that
+ * {@link AclLoadSimulator} runs without a DB or a broker. Rows read FOR UPDATE or FOR SHARE stay locked until
+ * the surrounding transaction completes like in a DB, a lock not granted in time fails the statement with
+ * a {@link CannotAcquireLockException}.
+ * <p>
+ * Only what the service uses on the simulated workload is implemented, other methods throw
+ * {@link UnsupportedOperationException}. Rows are handed out as the stored objects and writes aren't undone
+ * on rollback.
+ */
+class AclInMemoryStandIns
+{
+  private final long lockTimeoutMillis;
+  private final AtomicLong nextId = new AtomicLong();
+  private final ConcurrentMap<String, RowLock> rowLocks = new ConcurrentHashMap<>();
+
+  private final ConcurrentMap<String, AclSid> sidsBySidAndPrincipal = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, AclDomainEntityClass> domainEntityClassesByClass = new ConcurrentHashMap<>();
+  private final ConcurrentMap<Long, AclDomainEntityClass> domainEntityClasses = new ConcurrentHashMap<>();
+  private final ConcurrentSkipListMap<Long, AclDomainEntity> domainEntities = new ConcurrentSkipListMap<>();
+  private final ConcurrentMap<String, AclDomainEntity> domainEntitiesByClassAndId = new ConcurrentHashMap<>();
+  // indexes below are guarded by this
+  private final Map<Long, Long> parentIdsByDomainEntityId = new HashMap<>();
+  private final Map<Long, Set<Long>> childIdsByParentId = new HashMap<>();
+  private final ConcurrentMap<Long, AclEntryTemplate> entryTemplates = new ConcurrentHashMap<>();
+  private final ConcurrentMap<Long, AclEntry> entries = new ConcurrentHashMap<>();
+  private final Map<Long, Set<AclEntry>> entriesByDomainEntityId = new HashMap<>();
+  private final Map<Long, Set<AclEntry>> entriesBySidId = new HashMap<>();
+  private final ConcurrentMap<String, User> users = new ConcurrentHashMap<>();
+
+  /**
+   * Creates the system administrator SID and the root domain entity the service expects to exist.
+   *
+   * @param lockTimeoutMillis how long a statement waits for a row lock, deadlocks are resolved by it too
+   */
+  @Requires("lockTimeoutMillis > 0")
+  AclInMemoryStandIns(long lockTimeoutMillis)
+  {
+    this.lockTimeoutMillis = lockTimeoutMillis;
+
+    AclSid administratorSid = new AclSid();
+    administratorSid.setSid(User.SYSTEM_ADMINISTRATOR);
+    administratorSid.setIsPrincipal(true);
+    new SidDao().create(administratorSid);
+
+    AclDomainEntityClass rootDomainEntityClass = new AclDomainEntityClass();
+    rootDomainEntityClass.setClazz(RootEntity.class.getName());
+    new DomainEntityClassDao().create(rootDomainEntityClass);
+
+    AclDomainEntity rootDomainEntity = new AclDomainEntity();
+    rootDomainEntity.setDomainEntityClass(rootDomainEntityClass);
+    rootDomainEntity.setEntityId(RootEntity.DEFAULT_ROOT_ENTITY_ID);
+    rootDomainEntity.setOwnerSid(administratorSid);
+    rootDomainEntity.setEntriesInheriting(true);
+    new DomainEntityDao().create(rootDomainEntity);
+  }
+
+  /**
+   * Stand-ins by the names of the {@link AclServiceImpl} properties they are meant for, their lookups locking rows
+   * are timed, see {@link AclLoadSimulator#timingLockWaits(Class, Object)}.
+   */
+  @Ensures("result != null")
+  Map<String, Object> getBeans()
+  {
+    Map<String, Object> result = new LinkedHashMap<>();
+    result.put("sidDao", timedProxy(AclSidDao.class, new SidDao()));
+    result.put("domainEntityClassDao", timedProxy(AclDomainEntityClassDao.class, new DomainEntityClassDao()));
+    result.put("domainEntityDao", timedProxy(AclDomainEntityDao.class, new DomainEntityDao()));
+    result.put("entryTemplateDao", timedProxy(AclEntryTemplateDao.class, new EntryTemplateDao()));
+    result.put("entryDao", timedProxy(AclEntryDao.class, new EntryDao()));
+    result.put("userService", timedProxy(UserService.class, new UserServiceStandIn()));
+    result.put("domainEntityModificationMessageSender",
+        timedProxy(AclDomainEntityModificationMessageSender.class, new MessageSender()));
+    result.put("domainEntityDeletionMessageSender",
+        timedProxy(AclDomainEntityDeletionMessageSender.class, new MessageSender()));
+    return result;
+  }
+
+  @Requires("userId != null")
+  void createUser(String userId)
+  {
+    User user = new User();
+    user.setId(userId);
+    users.putIfAbsent(userId, user);
+  }
+
+  @Ensures("result != null")
+  private static <T> T timedProxy(
+      Class<T> type,
+      Object target
+  )
+  {
+    return AclLoadSimulator.timingLockWaits(type, proxy(type, target));
+  }
+
+  /**
+   * @return implementation of the interface by the public methods of the target of the same name and parameters
+   */
+  @Requires({
+      "type != null",
+      "target != null"
+  })
+  @Ensures("result != null")
+  private static <T> T proxy(
+      Class<T> type,
+      Object target
+  )
+  {
+    final ConcurrentMap<Method, Optional<Method>> targetMethods = new ConcurrentHashMap<>();
+    return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, (proxy, method, args) -> {
+      if (Object.class == method.getDeclaringClass())
+        return method.invoke(target, args);
+
+      final Optional<Method> targetMethod = targetMethods.computeIfAbsent(method,
+          m -> findTargetMethod(target.getClass(), m));
+      if (!targetMethod.isPresent())
+        throw new UnsupportedOperationException(
+            type.getSimpleName() + "." + method.getName() + " is not simulated in memory.");
+
+      try
+      {
+        return targetMethod.get().invoke(target, args);
+      }
+      catch (InvocationTargetException ex)
+      {
+        throw ex.getCause();
+      }
+    }));
+  }
+
+  private static Optional<Method> findTargetMethod(
+      Class<?> targetClass,
+      Method method
+  )
+  {
+    for (Method targetMethod : targetClass.getDeclaredMethods())
+    {
+      if (!targetMethod.getName().equals(method.getName())
+          || targetMethod.getParameterCount() != method.getParameterCount())
+        continue;
+
+      boolean isMatching = true;
+      for (int i = 0; i < method.getParameterCount(); i++)
+        isMatching &= Primitives.wrap(targetMethod.getParameterTypes()[i])
+            .isAssignableFrom(Primitives.wrap(method.getParameterTypes()[i]));
+      if (isMatching)
+      {
+        targetMethod.setAccessible(true);
+        return Optional.of(targetMethod);
+      }
+    }
+
+    return Optional.empty();
+  }
+
+  /**
+   * Locks the row until the current transaction completes, only waits for the lock outside of transactions.
+   */
+  private void lock(
+      String key,
+      boolean exclusive
+  )
+  {
+    final RowLock rowLock = rowLocks.computeIfAbsent(key, k -> new RowLock());
+    final boolean isTransactional = TransactionSynchronizationManager.isSynchronizationActive();
+    final LockHolder holder = isTransactional ? getLockHolder() : new LockHolder();
+    try
+    {
+      if (!rowLock.acquire(holder, exclusive, lockTimeoutMillis))
+        throw new CannotAcquireLockException("Lock wait timeout exceeded on " + key + ".");
+    }
+    catch (InterruptedException ex)
+    {
+      Thread.currentThread().interrupt();
+      throw new CannotAcquireLockException("Interrupted while waiting for lock on " + key + ".", ex);
+    }
+
+    if (isTransactional)
+      holder.rowLocks.add(rowLock);
+    else
+      rowLock.release(holder);
+  }
+
+  @Ensures("result != null")
+  private static LockHolder getLockHolder()
+  {
+    // synchronizations of suspended transactions aren't visible, so a new transaction gets its own holder
+    for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations())
+      if (synchronization instanceof LockHolder)
+        return (LockHolder) synchronization;
+
+    LockHolder result = new LockHolder();
+    TransactionSynchronizationManager.registerSynchronization(result);
+    return result;
+  }
+
+  private static String toKey(
+      String sid,
+      boolean isPrincipal
+  )
+  {
+    return sid + (isPrincipal ? "#principal" : "#group");
+  }
+
+  private static String toKey(
+      String clazz,
+      Long entityId
+  )
+  {
+    return clazz + "#" + entityId;
+  }
+
+  private synchronized Set<AclEntry> getEntries(
+      Map<Long, Set<AclEntry>> index,
+      Long id
+  )
+  {
+    final Set<AclEntry> result = index.get(id);
+    return (null == result) ? Collections.emptySet() : new HashSet<>(result);
+  }
+
+  private boolean hasGrantingEntry(
+      Long domainEntityId,
+      Collection<Long> sidIds,
+      long mask
+  )
+  {
+    for (AclEntry entry : getEntries(entriesByDomainEntityId, domainEntityId))
+      if (entry.getGranting() && sidIds.contains(entry.getSid().getId())
+          && (entry.getPermission().getMask() & mask) == mask)
+        return true;
+
+    return false;
+  }
+
+  private class SidDao
+  {
+    public AclSid getBySidAndPrincipal(
+        String sid,
+        boolean isPrincipal
+    )
+    {
+      return sidsBySidAndPrincipal.get(toKey(sid, isPrincipal));
+    }
+
+    public AclSid getBySidAndPrincipalForUpdate(
+        String sid,
+        boolean isPrincipal
+    )
+    {
+      final AclSid result = getBySidAndPrincipal(sid, isPrincipal);
+      if (null != result)
+        lock("sid#" + result.getId(), true);
+      return result;
+    }
+
+    public Long create(AclSid sid)
+    {
+      sid.setId(nextId.incrementAndGet());
+      sidsBySidAndPrincipal.put(toKey(sid.getSid(), sid.getIsPrincipal()), sid);
+      return sid.getId();
+    }
+
+    public List<AclSid> getAll()
+    {
+      return new ArrayList<>(sidsBySidAndPrincipal.values());
+    }
+  }
+
+  private class DomainEntityClassDao
+  {
+    public AclDomainEntityClass getById(Long domainEntityClassId)
+    {
+      return domainEntityClasses.get(domainEntityClassId);
+    }
+
+    public AclDomainEntityClass getByClass(String clazz)
+    {
+      return domainEntityClassesByClass.get(clazz);
+    }
+
+    public AclDomainEntityClass getByClassForUpdate(String clazz)
+    {
+      final AclDomainEntityClass result = getByClass(clazz);
+      if (null != result)
+        lock("domainEntityClass#" + result.getId(), true);
+      return result;
+    }
+
+    public Long create(AclDomainEntityClass domainEntityClass)
+    {
+      domainEntityClass.setId(nextId.incrementAndGet());
+      domainEntityClasses.put(domainEntityClass.getId(), domainEntityClass);
+      domainEntityClassesByClass.put(domainEntityClass.getClazz(), domainEntityClass);
+      return domainEntityClass.getId();
+    }
+
+    public boolean isChild(
+        Long parentDomainEntityClassId,
+        Long childDomainEntityClassId
+    )
+    {
+      // classes of the simulated tree have no hierarchy
+      return false;
+    }
+
+    public List<AclDomainEntityClass> getAll()
+    {
+      return new ArrayList<>(domainEntityClasses.values());
+    }
+  }
+
+  private class DomainEntityDao
+  {
+    public AclDomainEntity getById(Long domainEntityId)
+    {
+      return domainEntities.get(domainEntityId);
+    }
+
+    public AclDomainEntity getByIdForUpdate(Long domainEntityId)
+    {
+      return lock(getById(domainEntityId), true);
+    }
+
+    public AclDomainEntity getByClassAndId(
+        String clazz,
+        Long entityId
+    )
+    {
+      return domainEntitiesByClassAndId.get(toKey(clazz, entityId));
+    }
+
+    public AclDomainEntity getByClassAndIdForUpdate(
+        String clazz,
+        Long entityId
+    )
+    {
+      return lock(getByClassAndId(clazz, entityId), true);
+    }
+
+    public AclDomainEntity getByClassAndIdForShare(
+        String clazz,
+        Long entityId
+    )
+    {
+      return lock(getByClassAndId(clazz, entityId), false);
+    }
+
+    private AclDomainEntity lock(
+        AclDomainEntity domainEntity,
+        boolean exclusive
+    )
+    {
+      if (null != domainEntity)
+        AclInMemoryStandIns.this.lock("domainEntity#" + domainEntity.getId(), exclusive);
+      return domainEntity;
+    }
+
+    public Map<Long, Long> getIdsByClassAndIds(
+        String clazz,
+        Collection<Long> entityIds
+    )
+    {
+      Map<Long, Long> result = new HashMap<>();
+      for (Long entityId : entityIds)
+      {
+        AclDomainEntity domainEntity = getByClassAndId(clazz, entityId);
+        if (null != domainEntity)
+          result.put(entityId, domainEntity.getId());
+      }
+      return result;
+    }
+
+    public List<Long> getIdsByParentIds(Collection<Long> parentIds)
+    {
+      synchronized (AclInMemoryStandIns.this)
+      {
+        return parentIds.stream()
+            .flatMap(parentId -> childIdsByParentId.getOrDefault(parentId, Collections.emptySet()).stream())
+            .collect(Collectors.toList());
+      }
+    }
+
+    public List<AclDomainEntity> getPageReadOnly(
+        Long afterDomainEntityId,
+        int pageSize
+    )
+    {
+      return domainEntities.tailMap((null == afterDomainEntityId) ? Long.MIN_VALUE : afterDomainEntityId, false)
+          .values().stream().limit(pageSize).collect(Collectors.toList());
+    }
+
+    public Long create(AclDomainEntity domainEntity)
+    {
+      domainEntity.setId(nextId.incrementAndGet());
+      domainEntities.put(domainEntity.getId(), domainEntity);
+      domainEntitiesByClassAndId.put(
+          toKey(domainEntity.getDomainEntityClass().getClazz(), domainEntity.getEntityId()), domainEntity);
+      update(domainEntity);
+      return domainEntity.getId();
+    }
+
+    public void update(AclDomainEntity domainEntity)
+    {
+      synchronized (AclInMemoryStandIns.this)
+      {
+        final Long parentId = (null == domainEntity.getParent()) ? null : domainEntity.getParent().getId();
+        final Long previousParentId = parentIdsByDomainEntityId.put(domainEntity.getId(), parentId);
+        if (null != previousParentId)
+          childIdsByParentId.get(previousParentId).remove(domainEntity.getId());
+        if (null != parentId)
+          childIdsByParentId.computeIfAbsent(parentId, id -> new HashSet<>()).add(domainEntity.getId());
+      }
+    }
+
+    public void delete(Long domainEntityId)
+    {
+      final AclDomainEntity domainEntity = domainEntities.remove(domainEntityId);
+      if (null == domainEntity)
+        return;
+
+      domainEntitiesByClassAndId.remove(
+          toKey(domainEntity.getDomainEntityClass().getClazz(), domainEntity.getEntityId()));
+      synchronized (AclInMemoryStandIns.this)
+      {
+        final Long parentId = parentIdsByDomainEntityId.remove(domainEntityId);
+        if (null != parentId)
+          childIdsByParentId.get(parentId).remove(domainEntityId);
+        childIdsByParentId.remove(domainEntityId);
+      }
+      for (AclEntry entry : getEntries(entriesByDomainEntityId, domainEntityId))
+        new EntryDao().delete(entry.getId());
+    }
+  }
+
+  private class EntryTemplateDao
+  {
+    public AclEntryTemplate getById(Long entryTemplateId)
+    {
+      return entryTemplates.get(entryTemplateId);
+    }
+
+    public Long create(AclEntryTemplate entryTemplate)
+    {
+      entryTemplate.setId(nextId.incrementAndGet());
+      entryTemplates.put(entryTemplate.getId(), entryTemplate);
+      return entryTemplate.getId();
+    }
+
+    public void delete(Long entryTemplateId)
+    {
+      entryTemplates.remove(entryTemplateId);
+    }
+  }
+
+  private class EntryDao
+  {
+    public Long create(AclEntry entry)
+    {
+      entry.setId(nextId.incrementAndGet());
+      entries.put(entry.getId(), entry);
+      synchronized (AclInMemoryStandIns.this)
+      {
+        entriesByDomainEntityId.computeIfAbsent(entry.getDomainEntity().getId(), id -> new HashSet<>()).add(entry);
+        entriesBySidId.computeIfAbsent(entry.getSid().getId(), id -> new HashSet<>()).add(entry);
+      }
+      return entry.getId();
+    }
+
+    public void delete(Long entryId)
+    {
+      final AclEntry entry = entries.remove(entryId);
+      if (null == entry)
+        return;
+
+      synchronized (AclInMemoryStandIns.this)
+      {
+        entriesByDomainEntityId.getOrDefault(entry.getDomainEntity().getId(), new HashSet<>()).remove(entry);
+        entriesBySidId.getOrDefault(entry.getSid().getId(), new HashSet<>()).remove(entry);
+      }
+    }
+
+    public List<AclEntry> getBySid(Long sidId)
+    {
+      return new ArrayList<>(getEntries(entriesBySidId, sidId));
+    }
+
+    public List<AclEntry> getBySidAndTemplate(
+        Long sidId,
+        Long entryTemplateId
+    )
+    {
+      return getEntries(entriesBySidId, sidId).stream()
+          .filter(entry -> entryTemplateId.equals(entry.getEntryTemplate().getId()))
+          .collect(Collectors.toList());
+    }
+
+    public List<AclEntry> getByDomainEntityAndSidAndTemplate(
+        Class<? extends Entity> entityClass,
+        Long entityId,
+        Long sidId,
+        Long entryTemplateId
+    )
+    {
+      final AclDomainEntity domainEntity = domainEntitiesByClassAndId.get(toKey(entityClass.getName(), entityId));
+      if (null == domainEntity)
+        return Collections.emptyList();
+
+      return getEntries(entriesByDomainEntityId, domainEntity.getId()).stream()
+          .filter(entry -> sidId.equals(entry.getSid().getId())
+              && entryTemplateId.equals(entry.getEntryTemplate().getId()))
+          .collect(Collectors.toList());
+    }
+
+    public boolean hasPermission(
+        Class<? extends Entity> entityClass,
+        Long entityId,
+        PermissionMask permissionMask,
+        String userId
+    )
+    {
+      final AclSid sid = sidsBySidAndPrincipal.get(toKey(userId, true));
+      return null != sid && hasPermission(entityClass, entityId, permissionMask, Collections.singleton(sid.getId()));
+    }
+
+    /**
+     * Evaluates entries of the SIDs on the domain entity and the ancestors it inherits entries from.
+     */
+    public boolean hasPermission(
+        Class<? extends Entity> entityClass,
+        Long entityId,
+        PermissionMask permissionMask,
+        Collection<Long> sidIds
+    )
+    {
+      AclDomainEntity domainEntity = domainEntitiesByClassAndId.get(toKey(entityClass.getName(), entityId));
+      while (null != domainEntity)
+      {
+        if (hasGrantingEntry(domainEntity.getId(), sidIds, permissionMask.getMask()))
+          return true;
+
+        domainEntity = Boolean.TRUE.equals(domainEntity.getEntriesInheriting()) ? domainEntity.getParent() : null;
+      }
+
+      return false;
+    }
+  }
+
+  private class UserServiceStandIn
+  {
+    public User getUserForUpdate(String userId)
+    {
+      final User result = users.get(userId);
+      if (null != result)
+        lock("user#" + userId, true);
+      return result;
+    }
+  }
+
+  /**
+   * There are no other nodes to notify.
+   */
+  private static class MessageSender
+  {
+    public void send(Object messagePayload)
+    {
+    }
+  }
+
+  /**
+   * Shared or exclusive row lock owned by a transaction, the only share owner may upgrade it like in a DB.
+   */
+  private static class RowLock
+  {
+    private Object exclusiveOwner;
+    private final Set<Object> shareOwners = new HashSet<>();
+
+    private synchronized boolean acquire(
+        Object owner,
+        boolean exclusive,
+        long timeoutMillis
+    )
+        throws
+        InterruptedException
+    {
+      final long deadline = System.currentTimeMillis() + timeoutMillis;
+      while (!isGrantable(owner, exclusive))
+      {
+        final long remainingMillis = deadline - System.currentTimeMillis();
+        if (remainingMillis <= 0)
+          return false;
+        wait(remainingMillis);
+      }
+
+      if (exclusive)
+        exclusiveOwner = owner;
+      else
+        shareOwners.add(owner);
+      return true;
+    }
+
+    private boolean isGrantable(
+        Object owner,
+        boolean exclusive
+    )
+    {
+      if (null != exclusiveOwner && exclusiveOwner != owner)
+        return false;
+
+      return !exclusive || shareOwners.isEmpty() || (1 == shareOwners.size() && shareOwners.contains(owner));
+    }
+
+    private synchronized void release(Object owner)
+    {
+      if (exclusiveOwner == owner)
+        exclusiveOwner = null;
+      shareOwners.remove(owner);
+      notifyAll();
+    }
+  }
+
+  /**
+   * Row locks of a transaction, released once it completes.
+   */
+  private static class LockHolder
+      extends TransactionSynchronizationAdapter
+  {
+    private final List<RowLock> rowLocks = new ArrayList<>();
+
+    @Override
+    public void afterCompletion(int status)
+    {
+      for (RowLock rowLock : rowLocks)
+        rowLock.release(this);
+    }
+  }
+}
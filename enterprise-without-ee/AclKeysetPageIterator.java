@@ -0,0 +1,84 @@
+package com.nsn.acl.core.impl;
+
+import com.google.java.contract.Requires;
+
+import java.util.*;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Lazily walks keyset-paginated results page by page, so at most one page is held in memory
+ * and every page may be loaded in its own transaction.
+ *
+ * @param <T> element type
+ * @param <K> keyset key type, the key of the last element of a page is passed to load the next one
+ */
+class AclKeysetPageIterator<T, K>
+    implements Iterator<T>
+{
+  private final BiFunction<K, Integer, List<T>> pageLoader;
+  private final Function<T, K> keyExtractor;
+  private final int pageSize;
+
+  private Iterator<T> page = Collections.emptyIterator();
+  private K lastKey;
+  private boolean isLastPage;
+
+  @Requires({
+      "pageLoader != null",
+      "keyExtractor != null",
+      "pageSize > 0"
+  })
+  AclKeysetPageIterator(
+      BiFunction<K, Integer, List<T>> pageLoader,
+      Function<T, K> keyExtractor,
+      int pageSize
+  )
+  {
+    this.pageLoader = pageLoader;
+    this.keyExtractor = keyExtractor;
+    this.pageSize = pageSize;
+  }
+
+  @Requires({
+      "pageLoader != null",
+      "keyExtractor != null",
+      "pageSize > 0"
+  })
+  static <T, K> Stream<T> stream(
+      BiFunction<K, Integer, List<T>> pageLoader,
+      Function<T, K> keyExtractor,
+      int pageSize
+  )
+  {
+    return StreamSupport.stream(Spliterators.spliteratorUnknownSize(
+        new AclKeysetPageIterator<>(pageLoader, keyExtractor, pageSize),
+        Spliterator.ORDERED | Spliterator.NONNULL), false);
+  }
+
+  @Override
+  public boolean hasNext()
+  {
+    if (!page.hasNext() && !isLastPage)
+    {
+      List<T> elements = pageLoader.apply(lastKey, pageSize);
+      isLastPage = elements.size() < pageSize;
+      if (!elements.isEmpty())
+        lastKey = keyExtractor.apply(elements.get(elements.size() - 1));
+      page = elements.iterator();
+    }
+
+    return page.hasNext();
+  }
+
+  @Override
+  public T next()
+  {
+    if (!hasNext())
+      throw new NoSuchElementException();
+
+    return page.next();
+  }
+}
@@ -0,0 +1,573 @@
+package com.nsn.acl.core.impl;
+
+import com.google.java.contract.Ensures;
+import com.google.java.contract.Requires;
+import com.nsn.acl.core.AclDomainEntity;
+import com.nsn.acl.core.AclEntryTemplate;
+import com.nsn.acl.core.AclService;
+import com.nsn.acl.core.PermissionMask;
+import com.nsn.auth.core.UserNotFoundException;
+import com.nsn.common.core.Entity;
+import org.springframework.context.support.GenericXmlApplicationContext;
+import org.springframework.dao.PessimisticLockingFailureException;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Drives an {@link AclService} with a generated domain entity tree, users and entries, then runs a mixed workload
+ * of permission checks, grants, revokes and reparents from many threads and reports throughput, latency
+ * percentiles and DB lock-wait distributions.
+ * <p>
+ * The service is expected to be wired by the caller, e.g. against an embedded DB or the in-memory stand-ins used
+ * by {@link #main(String[])}, so the same harness measures any combination of DAOs, caches and the optional stores
+ * of {@link AclServiceImpl}. Lock waits are measured on DAOs wrapped by {@link #timingLockWaits(Class, Object)}.
+ * <p>
+ * Lock timeouts and deadlocks are counted per operation, any other failure stops the run since the numbers
+ * wouldn't mean anything.
+ */
+public class AclLoadSimulator
+{
+  public enum Operation
+  {
+    CHECK,
+    GRANT,
+    REVOKE,
+    REPARENT
+  }
+
+  private final AclService aclService;
+  private final Class<? extends Entity> entityClass;
+  private final PermissionMask permissionMask;
+  private final Function<AclDomainEntity, AclEntryTemplate> entryTemplateFactory;
+  private final Consumer<String> userProvisioner;
+
+  private int treeDepth = 5;
+  private int fanOut = 5;
+  private int userCount = 100;
+  private int entriesPerUser = 10;
+  private int threadCount = Runtime.getRuntime().availableProcessors();
+  private long durationMillis = TimeUnit.MINUTES.toMillis(1);
+  private final EnumMap<Operation, Integer> operationWeights = new EnumMap<>(Operation.class);
+  private long seed = 42;
+
+  // generated tree, node i has entity id i + 1
+  private int[] parents;
+  private int[] depths;
+  private int[][] nodesByDepth;
+  private String[] userIds;
+  // created up front, so that workers don't write anything but the simulated operations
+  private AclEntryTemplate[] entryTemplates;
+  private volatile Exception failure;
+
+  private static final ThreadLocal<Worker> currentWorker = new ThreadLocal<>();
+
+  /**
+   * @param entityClass          class of generated domain entities, the tree is built of its instances only
+   * @param permissionMask       mask which is checked, granted and revoked
+   * @param entryTemplateFactory creates (not persists) an entry template of the mask for a domain entity
+   * @param userProvisioner      makes sure a user exists, e.g. creates it in the embedded DB
+   */
+  @Requires({
+      "aclService != null",
+      "entityClass != null",
+      "permissionMask != null",
+      "entryTemplateFactory != null",
+      "userProvisioner != null"
+  })
+  public AclLoadSimulator(
+      AclService aclService,
+      Class<? extends Entity> entityClass,
+      PermissionMask permissionMask,
+      Function<AclDomainEntity, AclEntryTemplate> entryTemplateFactory,
+      Consumer<String> userProvisioner
+  )
+  {
+    this.aclService = aclService;
+    this.entityClass = entityClass;
+    this.permissionMask = permissionMask;
+    this.entryTemplateFactory = entryTemplateFactory;
+    this.userProvisioner = userProvisioner;
+
+    operationWeights.put(Operation.CHECK, 90);
+    operationWeights.put(Operation.GRANT, 4);
+    operationWeights.put(Operation.REVOKE, 4);
+    operationWeights.put(Operation.REPARENT, 2);
+  }
+
+  @Requires("treeDepth > 0")
+  public void setTreeDepth(int treeDepth)
+  {
+    this.treeDepth = treeDepth;
+  }
+
+  @Requires("fanOut > 0")
+  public void setFanOut(int fanOut)
+  {
+    this.fanOut = fanOut;
+  }
+
+  @Requires("userCount > 0")
+  public void setUserCount(int userCount)
+  {
+    this.userCount = userCount;
+  }
+
+  @Requires("entriesPerUser >= 0")
+  public void setEntriesPerUser(int entriesPerUser)
+  {
+    this.entriesPerUser = entriesPerUser;
+  }
+
+  @Requires("threadCount > 0")
+  public void setThreadCount(int threadCount)
+  {
+    this.threadCount = threadCount;
+  }
+
+  @Requires("durationMillis > 0")
+  public void setDurationMillis(long durationMillis)
+  {
+    this.durationMillis = durationMillis;
+  }
+
+  @Requires({
+      "operation != null",
+      "weight >= 0"
+  })
+  public void setOperationWeight(
+      Operation operation,
+      int weight
+  )
+  {
+    operationWeights.put(operation, weight);
+  }
+
+  public void setSeed(long seed)
+  {
+    this.seed = seed;
+  }
+
+  /**
+   * Generates the tree, users and entries. The tree is complete, i.e. every node above the last level
+   * has fanOut children.
+   */
+  public void setUp()
+      throws
+      UserNotFoundException
+  {
+    Random random = new Random(seed);
+
+    List<Integer> parentList = new ArrayList<>();
+    List<Integer> depthList = new ArrayList<>();
+    List<List<Integer>> levels = new ArrayList<>();
+    List<Integer> level = new ArrayList<>();
+    for (int i = 0; i < fanOut; i++)
+    {
+      level.add(parentList.size());
+      parentList.add(-1);
+      depthList.add(0);
+    }
+    levels.add(level);
+    for (int depth = 1; depth < treeDepth; depth++)
+    {
+      List<Integer> nextLevel = new ArrayList<>();
+      for (Integer parent : level)
+        for (int i = 0; i < fanOut; i++)
+        {
+          nextLevel.add(parentList.size());
+          parentList.add(parent);
+          depthList.add(depth);
+        }
+      levels.add(nextLevel);
+      level = nextLevel;
+    }
+
+    parents = parentList.stream().mapToInt(Integer::intValue).toArray();
+    depths = depthList.stream().mapToInt(Integer::intValue).toArray();
+    nodesByDepth = levels.stream().map(l -> l.stream().mapToInt(Integer::intValue).toArray()).toArray(int[][]::new);
+
+    // parents go first, so every node is created under an existing one
+    entryTemplates = new AclEntryTemplate[parents.length];
+    for (int node = 0; node < parents.length; node++)
+    {
+      aclService.updateOrCreateDomainEntity(entityClass, toEntityId(node),
+          (parents[node] < 0) ? null : entityClass, (parents[node] < 0) ? null : toEntityId(parents[node]));
+      AclEntryTemplate entryTemplate =
+          entryTemplateFactory.apply(aclService.getDomainEntity(entityClass, toEntityId(node)));
+      entryTemplate.setId(aclService.createEntryTemplate(entryTemplate));
+      entryTemplates[node] = entryTemplate;
+    }
+
+    userIds = new String[userCount];
+    for (int i = 0; i < userCount; i++)
+    {
+      userIds[i] = "acl-load-simulator-" + i;
+      userProvisioner.accept(userIds[i]);
+      for (int j = 0; j < entriesPerUser; j++)
+        grant(userIds[i], random.nextInt(parents.length));
+    }
+  }
+
+  /**
+   * Runs the workload for the configured duration, {@link #setUp()} has to be called first.
+   *
+   * @throws IllegalStateException if an operation failed for another reason than a lock timeout or a deadlock
+   */
+  @Ensures("result != null")
+  public Report run()
+      throws
+      InterruptedException
+  {
+    checkState(nodesByDepth.length > 1 || 0 == operationWeights.getOrDefault(Operation.REPARENT, 0),
+        "Reparenting needs a tree depth of at least 2.");
+
+    failure = null;
+    final int totalWeight = operationWeights.values().stream().mapToInt(Integer::intValue).sum();
+    final long deadline = System.currentTimeMillis() + durationMillis;
+    final List<Worker> workers = new ArrayList<>();
+    final List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < threadCount; i++)
+    {
+      Worker worker = new Worker(new Random(seed + i + 1), totalWeight, deadline);
+      workers.add(worker);
+      Thread thread = new Thread(worker, "acl-load-simulator-" + i);
+      threads.add(thread);
+    }
+
+    final long startedAt = System.nanoTime();
+    for (Thread thread : threads)
+      thread.start();
+    for (Thread thread : threads)
+      thread.join();
+    final long elapsedNanos = System.nanoTime() - startedAt;
+
+    if (null != failure)
+      throw new IllegalStateException("Simulation stopped by an unexpected failure.", failure);
+
+    return new Report(workers, elapsedNanos);
+  }
+
+  /**
+   * Wraps a DAO or service, so that its lookups locking rows, i.e. methods named *ForUpdate or *ForShare, are
+   * timed as lock waits of the operation the calling worker simulates. Calls outside of workers aren't timed.
+   */
+  @Requires({
+      "type != null",
+      "target != null"
+  })
+  @Ensures("result != null")
+  public static <T> T timingLockWaits(
+      Class<T> type,
+      T target
+  )
+  {
+    return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, (proxy, method, args) -> {
+      final Worker worker = currentWorker.get();
+      final boolean isLocking = method.getName().endsWith("ForUpdate") || method.getName().endsWith("ForShare");
+      final long startedAt = System.nanoTime();
+      try
+      {
+        return method.invoke(target, args);
+      }
+      catch (InvocationTargetException ex)
+      {
+        throw ex.getCause();
+      }
+      finally
+      {
+        if (isLocking && null != worker)
+          worker.lockWaits.get(worker.operation).record(System.nanoTime() - startedAt);
+      }
+    }));
+  }
+
+  /**
+   * Runs the simulation against the {@link AclService} of a Spring context whose DAOs, user service and JMS
+   * senders are the in-memory stand-ins of {@link AclInMemoryStandIns}, which the context refers to by the
+   * property names of {@link AclServiceImpl}, e.g. {@code sidDao}. Transactions, caches and the optional stores
+   * are whatever the context configures.
+   * <p>
+   * Arguments: context location, class of the generated domain entities, name of the {@link PermissionMask} bean
+   * to simulate and name of an {@link AclEntryTemplate} bean whose permission and granting generated templates
+   * copy. System properties {@code aclLoadSimulator.threads}, {@code aclLoadSimulator.users} and
+   * {@code aclLoadSimulator.durationSeconds} override the defaults.
+   */
+  public static void main(String[] args)
+      throws
+      Exception
+  {
+    checkArgument(4 == args.length,
+        "Usage: AclLoadSimulator <context location> <entity class> <permission mask bean> <entry template bean>");
+
+    AclInMemoryStandIns standIns = new AclInMemoryStandIns(TimeUnit.SECONDS.toMillis(10));
+    try (GenericXmlApplicationContext context = new GenericXmlApplicationContext())
+    {
+      standIns.getBeans().forEach(context.getBeanFactory()::registerSingleton);
+      context.load(args[0]);
+      context.refresh();
+
+      final AclEntryTemplate prototype = context.getBean(args[3], AclEntryTemplate.class);
+      AclLoadSimulator simulator = new AclLoadSimulator(
+          context.getBean(AclService.class),
+          Class.forName(args[1]).asSubclass(Entity.class),
+          context.getBean(args[2], PermissionMask.class),
+          domainEntity -> {
+            AclEntryTemplate entryTemplate = new AclEntryTemplate();
+            entryTemplate.setDomainEntity(domainEntity);
+            entryTemplate.setPermission(prototype.getPermission());
+            entryTemplate.setGranting(prototype.getGranting());
+            return entryTemplate;
+          },
+          standIns::createUser
+      );
+      simulator.setThreadCount(Integer.getInteger("aclLoadSimulator.threads", simulator.threadCount));
+      simulator.setUserCount(Integer.getInteger("aclLoadSimulator.users", simulator.userCount));
+      simulator.setDurationMillis(TimeUnit.SECONDS.toMillis(Long.getLong("aclLoadSimulator.durationSeconds",
+          TimeUnit.MILLISECONDS.toSeconds(simulator.durationMillis))));
+
+      simulator.setUp();
+      System.out.print(simulator.run());
+    }
+  }
+
+  private Long toEntityId(int node)
+  {
+    return (long) node + 1;
+  }
+
+  private void grant(
+      String userId,
+      int node
+  )
+      throws
+      UserNotFoundException
+  {
+    aclService.createEntry(entityClass, toEntityId(node), getEntryTemplate(node), userId);
+  }
+
+  private AclEntryTemplate getEntryTemplate(int node)
+  {
+    return entryTemplates[node];
+  }
+
+  private class Worker
+      implements Runnable
+  {
+    private final Random random;
+    private final int totalWeight;
+    private final long deadline;
+    private final EnumMap<Operation, LatencyRecorder> latencies = new EnumMap<>(Operation.class);
+    private final EnumMap<Operation, LatencyRecorder> lockWaits = new EnumMap<>(Operation.class);
+    // by exception class, lock timeouts and deadlocks only
+    private final EnumMap<Operation, Map<String, Long>> errors = new EnumMap<>(Operation.class);
+    private Operation operation;
+
+    private Worker(
+        Random random,
+        int totalWeight,
+        long deadline
+    )
+    {
+      this.random = random;
+      this.totalWeight = totalWeight;
+      this.deadline = deadline;
+      for (Operation operation : Operation.values())
+      {
+        latencies.put(operation, new LatencyRecorder());
+        lockWaits.put(operation, new LatencyRecorder());
+        errors.put(operation, new TreeMap<>());
+      }
+    }
+
+    @Override
+    public void run()
+    {
+      currentWorker.set(this);
+      try
+      {
+        while (System.currentTimeMillis() < deadline && null == failure)
+        {
+          operation = nextOperation();
+          final long startedAt = System.nanoTime();
+          try
+          {
+            execute(operation);
+            latencies.get(operation).record(System.nanoTime() - startedAt);
+          }
+          catch (Exception ex)
+          {
+            if (!isLockFailure(ex))
+            {
+              failure = ex;
+              return;
+            }
+
+            // lock timeouts and deadlocks are part of the picture, count them and go on
+            errors.get(operation).merge(ex.getClass().getSimpleName(), 1L, Long::sum);
+          }
+        }
+      }
+      finally
+      {
+        currentWorker.remove();
+      }
+    }
+
+    /**
+     * Listeners' failures get wrapped, so the causes are looked at too.
+     */
+    private boolean isLockFailure(Throwable ex)
+    {
+      for (Throwable cause = ex; null != cause; cause = cause.getCause())
+        if (cause instanceof PessimisticLockingFailureException)
+          return true;
+
+      return false;
+    }
+
+    private Operation nextOperation()
+    {
+      int value = random.nextInt(totalWeight);
+      for (Map.Entry<Operation, Integer> weight : operationWeights.entrySet())
+      {
+        value -= weight.getValue();
+        if (value < 0)
+          return weight.getKey();
+      }
+
+      return Operation.CHECK;
+    }
+
+    private void execute(Operation operation)
+        throws
+        UserNotFoundException
+    {
+      final String userId = userIds[random.nextInt(userIds.length)];
+      // top level nodes can't be moved within their level, they are numbered first
+      final int node = (Operation.REPARENT == operation)
+          ? nodesByDepth[0].length + random.nextInt(parents.length - nodesByDepth[0].length)
+          : random.nextInt(parents.length);
+      switch (operation)
+      {
+        case CHECK:
+          aclService.hasPermission(entityClass, toEntityId(node), permissionMask, userId);
+          break;
+        case GRANT:
+          grant(userId, node);
+          break;
+        case REVOKE:
+          aclService.deleteEntry(entityClass, toEntityId(node), getEntryTemplate(node).getId(), userId);
+          break;
+        case REPARENT:
+          // a node is moved within its level only, so the tree never gets a cycle
+          int[] candidates = nodesByDepth[depths[node] - 1];
+          aclService.updateOrCreateDomainEntity(entityClass, toEntityId(node), entityClass,
+              toEntityId(candidates[random.nextInt(candidates.length)]));
+          break;
+      }
+    }
+  }
+
+  /**
+   * Unbounded recorder of raw latencies, a simulation run is short enough to keep them all.
+   */
+  private static class LatencyRecorder
+  {
+    private long[] values = new long[1024];
+    private int size;
+
+    private void record(long nanos)
+    {
+      if (size == values.length)
+        values = Arrays.copyOf(values, size * 2);
+      values[size++] = nanos;
+    }
+  }
+
+  public static class Report
+  {
+    private final String text;
+
+    private Report(
+        List<Worker> workers,
+        long elapsedNanos
+    )
+    {
+      final double elapsedSeconds = elapsedNanos / 1e9;
+      StringBuilder builder = new StringBuilder();
+      builder.append(String.format("elapsed %.1f s, %d threads%n", elapsedSeconds, workers.size()));
+      builder.append(String.format("%-10s %10s %10s %10s %10s %10s %8s%n",
+          "operation", "count", "ops/s", "p50 ms", "p99 ms", "max ms", "errors"));
+      final Map<String, Long> errorCounts = new TreeMap<>();
+      for (Operation operation : Operation.values())
+      {
+        long[] values = collect(workers, worker -> worker.latencies.get(operation));
+        long errorCount = 0;
+        for (Worker worker : workers)
+          for (Map.Entry<String, Long> errorCountEntry : worker.errors.get(operation).entrySet())
+          {
+            errorCounts.merge(operation + " " + errorCountEntry.getKey(), errorCountEntry.getValue(), Long::sum);
+            errorCount += errorCountEntry.getValue();
+          }
+        builder.append(String.format("%-10s %10d %10.1f %10.3f %10.3f %10.3f %8d%n",
+            operation, values.length, values.length / elapsedSeconds,
+            percentile(values, 0.5) / 1e6, percentile(values, 0.99) / 1e6, percentile(values, 1) / 1e6, errorCount));
+      }
+
+      // time spent in lookups locking rows, which is the wait for the lock plus the lookup itself
+      builder.append(String.format("%n%-10s %10s %10s %10s %10s %10s%n",
+          "lock waits", "count", "total ms", "p50 ms", "p99 ms", "max ms"));
+      for (Operation operation : Operation.values())
+      {
+        long[] values = collect(workers, worker -> worker.lockWaits.get(operation));
+        builder.append(String.format("%-10s %10d %10.1f %10.3f %10.3f %10.3f%n",
+            operation, values.length, Arrays.stream(values).sum() / 1e6,
+            percentile(values, 0.5) / 1e6, percentile(values, 0.99) / 1e6, percentile(values, 1) / 1e6));
+      }
+
+      if (!errorCounts.isEmpty())
+        builder.append(String.format("%nerrors%n"));
+      errorCounts.forEach((error, count) -> builder.append(String.format("%-40s %8d%n", error, count)));
+
+      text = builder.toString();
+    }
+
+    @Ensures("result != null")
+    private static long[] collect(
+        List<Worker> workers,
+        Function<Worker, LatencyRecorder> recorderOf
+    )
+    {
+      return workers.stream()
+          .map(recorderOf)
+          .flatMapToLong(recorder -> Arrays.stream(recorder.values, 0, recorder.size))
+          .sorted()
+          .toArray();
+    }
+
+    private static long percentile(
+        long[] sortedValues,
+        double percentile
+    )
+    {
+      if (0 == sortedValues.length)
+        return 0;
+
+      return sortedValues[Math.min(sortedValues.length - 1, (int) Math.ceil(percentile * sortedValues.length) - 1)];
+    }
+
+    @Override
+    public String toString()
+    {
+      return text;
+    }
+  }
+}
@@ -0,0 +1,37 @@
+package com.nsn.acl.core.impl;
+
+import com.nsn.acl.core.AclEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Net effect of entry operations on a domain entity, i.e. with cancelling operations and duplicates removed,
+ * see {@link AclEntryOperationLog}.
+ */
+class AclNetModification
+{
+  private final Long domainEntityId;
+  private final List<AclEntry> entriesToDelete = new ArrayList<>();
+  private final List<AclEntry> entriesToCreate = new ArrayList<>();
+
+  AclNetModification(Long domainEntityId)
+  {
+    this.domainEntityId = domainEntityId;
+  }
+
+  Long getDomainEntityId()
+  {
+    return domainEntityId;
+  }
+
+  List<AclEntry> getEntriesToDelete()
+  {
+    return entriesToDelete;
+  }
+
+  List<AclEntry> getEntriesToCreate()
+  {
+    return entriesToCreate;
+  }
+}
@@ -0,0 +1,155 @@
+package com.nsn.acl.core;
+
+/**
+ * Details of a single sampled or slow permission check, see {@link AclService#getPermissionCheckTraces()}.
+ * Durations which weren't measured are -1.
+ */
+public class AclPermissionCheckTrace
+{
+  /**
+   * What answered the check.
+   */
+  public enum DecidingPath
+  {
+    CACHE,
+    SNAPSHOT,
+    FAST_DENY_FILTER,
+    EFFECTIVE_ENTRY_STORE,
+    ENTRY_DAO
+  }
+
+  private final long timestamp;
+  private final String userId;
+  private final Long domainEntityId;
+  private final long mask;
+  private final boolean sampled;
+  private final boolean cacheHit;
+  private final long domainEntityIdNanos;
+  private final long hasPermissionNanos;
+  private final long totalNanos;
+  private final boolean granted;
+  private final DecidingPath decidingPath;
+  private final Long decidingDomainEntityId;
+
+  public AclPermissionCheckTrace(
+      long timestamp,
+      String userId,
+      Long domainEntityId,
+      long mask,
+      boolean sampled,
+      boolean cacheHit,
+      long domainEntityIdNanos,
+      long hasPermissionNanos,
+      long totalNanos,
+      boolean granted,
+      DecidingPath decidingPath,
+      Long decidingDomainEntityId
+  )
+  {
+    this.timestamp = timestamp;
+    this.userId = userId;
+    this.domainEntityId = domainEntityId;
+    this.mask = mask;
+    this.sampled = sampled;
+    this.cacheHit = cacheHit;
+    this.domainEntityIdNanos = domainEntityIdNanos;
+    this.hasPermissionNanos = hasPermissionNanos;
+    this.totalNanos = totalNanos;
+    this.granted = granted;
+    this.decidingPath = decidingPath;
+    this.decidingDomainEntityId = decidingDomainEntityId;
+  }
+
+  public long getTimestamp()
+  {
+    return timestamp;
+  }
+
+  public String getUserId()
+  {
+    return userId;
+  }
+
+  public Long getDomainEntityId()
+  {
+    return domainEntityId;
+  }
+
+  public long getMask()
+  {
+    return mask;
+  }
+
+  /**
+   * @return false if the check is traced only because it was slow
+   */
+  public boolean isSampled()
+  {
+    return sampled;
+  }
+
+  public boolean isCacheHit()
+  {
+    return cacheHit;
+  }
+
+  /**
+   * @return time spent in {@link AclService#getDomainEntityId(Class, Long)}
+   */
+  public long getDomainEntityIdNanos()
+  {
+    return domainEntityIdNanos;
+  }
+
+  /**
+   * @return time spent computing a cache miss, -1 on cache hit
+   */
+  public long getHasPermissionNanos()
+  {
+    return hasPermissionNanos;
+  }
+
+  public long getTotalNanos()
+  {
+    return totalNanos;
+  }
+
+  public boolean isGranted()
+  {
+    return granted;
+  }
+
+  public DecidingPath getDecidingPath()
+  {
+    return decidingPath;
+  }
+
+  /**
+   * @return the domain entity (the checked one or its ancestor) whose entry granted the permission,
+   *         null if it's denied or unknown, it's known from the snapshot and, for sampled checks, from the
+   *         effective entry store
+   */
+  public Long getDecidingDomainEntityId()
+  {
+    return decidingDomainEntityId;
+  }
+
+  @Override
+  public String toString()
+  {
+    return "AclPermissionCheckTrace{" +
+        "timestamp=" + timestamp +
+        ", userId='" + userId + '\'' +
+        ", domainEntityId=" + domainEntityId +
+        ", mask=" + mask +
+        ", sampled=" + sampled +
+        ", cacheHit=" + cacheHit +
+        ", domainEntityIdNanos=" + domainEntityIdNanos +
+        ", hasPermissionNanos=" + hasPermissionNanos +
+        ", totalNanos=" + totalNanos +
+        ", granted=" + granted +
+        ", decidingPath=" + decidingPath +
+        ", decidingDomainEntityId=" + decidingDomainEntityId +
+        '}';
+  }
+}
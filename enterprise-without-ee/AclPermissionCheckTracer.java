@@ -0,0 +1,111 @@
+package com.nsn.acl.core.impl;
+
+import com.google.java.contract.Ensures;
+import com.google.java.contract.Requires;
+import com.nsn.acl.core.AclPermissionCheckTrace;
+import com.nsn.acl.core.AclPermissionCheckTrace.DecidingPath;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Keeps the latest sampled or slow permission checks in a bounded ring buffer.
+ */
+public class AclPermissionCheckTracer
+{
+  private final AtomicReferenceArray<AclPermissionCheckTrace> traces;
+  private final AtomicLong traceCount = new AtomicLong();
+  private final double sampleRate;
+  private final long slowThresholdNanos;
+
+  /**
+   * @param capacity            number of the latest traces to keep
+   * @param sampleRate          share of checks traced with full details, from 0 to 1
+   * @param slowThresholdMillis checks taking longer are traced even if they aren't sampled
+   */
+  @Requires({
+      "capacity > 0",
+      "sampleRate >= 0 && sampleRate <= 1",
+      "slowThresholdMillis >= 0"
+  })
+  public AclPermissionCheckTracer(
+      int capacity,
+      double sampleRate,
+      long slowThresholdMillis
+  )
+  {
+    this.traces = new AtomicReferenceArray<>(capacity);
+    this.sampleRate = sampleRate;
+    this.slowThresholdNanos = TimeUnit.MILLISECONDS.toNanos(slowThresholdMillis);
+  }
+
+  @Ensures("result != null")
+  Probe startProbe()
+  {
+    return new Probe(ThreadLocalRandom.current().nextDouble() < sampleRate, System.nanoTime());
+  }
+
+  /**
+   * @return the elapsed time if the check has to be recorded, -1 otherwise
+   */
+  @Requires("probe != null")
+  long stopProbe(Probe probe)
+  {
+    final long totalNanos = System.nanoTime() - probe.startedAt;
+    return (probe.sampled || totalNanos >= slowThresholdNanos) ? totalNanos : -1;
+  }
+
+  @Requires("trace != null")
+  void record(AclPermissionCheckTrace trace)
+  {
+    traces.set((int) (traceCount.getAndIncrement() % traces.length()), trace);
+  }
+
+  /**
+   * @return traces from the oldest to the latest
+   */
+  @Ensures("result != null")
+  public List<AclPermissionCheckTrace> getTraces()
+  {
+    final long count = traceCount.get();
+    final int capacity = traces.length();
+    List<AclPermissionCheckTrace> result = new ArrayList<>(capacity);
+    for (long i = Math.max(0, count - capacity); i < count; i++)
+    {
+      AclPermissionCheckTrace trace = traces.get((int) (i % capacity));
+      if (null != trace)
+        result.add(trace);
+    }
+
+    return result;
+  }
+
+  /**
+   * Timings of a single permission check collected on its way.
+   */
+  static final class Probe
+  {
+    final boolean sampled;
+    final long startedAt;
+    Long domainEntityId;
+    boolean cacheHit;
+    long domainEntityIdNanos = -1;
+    long hasPermissionNanos = -1;
+    DecidingPath decidingPath;
+    // taken from what the check loads anyway, explaining must not cost a query of its own
+    Long decidingDomainEntityId;
+
+    private Probe(
+        boolean sampled,
+        long startedAt
+    )
+    {
+      this.sampled = sampled;
+      this.startedAt = startedAt;
+    }
+  }
+}
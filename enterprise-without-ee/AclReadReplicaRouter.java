@@ -0,0 +1,128 @@
+package com.nsn.acl.core.impl;
+
+import com.google.java.contract.Requires;
+import org.springframework.transaction.NoTransactionException;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * Decides whether a non-locking read may go to the read-only replica, see {@link AclReadRoutingDataSource}.
+ * <p>
+ * A read goes to the replica only if it's the first statement of a transaction started just for it (so no writes
+ * can follow on the same connection) and nothing it depends on has been modified within the staleness window,
+ * according to modifications observed by this node. Transactions which have already chosen their connection, i.e.
+ * run a statement, are recognized by a marker registered along with their synchronizations, which needs
+ * the routing data source to report every connection it chooses, see {@link #recordStatement()}.
+ */
+public class AclReadReplicaRouter
+{
+  private static final int PRUNE_THRESHOLD = 10000;
+
+  private final long stalenessMillis;
+  private final ThreadLocal<Boolean> replicaScope = new ThreadLocal<>();
+  // registered with transactions which have run a statement, synchronizations of suspended ones aren't visible
+  private final TransactionSynchronization statementMarker = new TransactionSynchronizationAdapter()
+  {
+  };
+  private final ConcurrentMap<Long, Long> modifiedAtByDomainEntityId = new ConcurrentHashMap<>();
+  private volatile long lastModifiedAt;
+
+  /**
+   * @param stalenessMillis reads depending on domain entities modified within this time go to the primary
+   */
+  @Requires("stalenessMillis >= 0")
+  public AclReadReplicaRouter(long stalenessMillis)
+  {
+    this.stalenessMillis = stalenessMillis;
+  }
+
+  @Requires("domainEntityIds != null")
+  void recordModification(long[] domainEntityIds)
+  {
+    final long now = System.currentTimeMillis();
+    for (long domainEntityId : domainEntityIds)
+      modifiedAtByDomainEntityId.put(domainEntityId, now);
+    lastModifiedAt = now;
+
+    if (modifiedAtByDomainEntityId.size() > PRUNE_THRESHOLD)
+      modifiedAtByDomainEntityId.values().removeIf(modifiedAt -> now - modifiedAt > stalenessMillis);
+  }
+
+  /**
+   * @param domainEntityId the domain entity the read depends on, null if it may depend on any of them
+   */
+  <T> T read(
+      Long domainEntityId,
+      Supplier<T> action
+  )
+  {
+    if (isRecentlyModified(domainEntityId) || !isOwnTransaction())
+      return action.get();
+
+    final Boolean previousScope = replicaScope.get();
+    replicaScope.set(Boolean.TRUE);
+    try
+    {
+      return action.get();
+    }
+    finally
+    {
+      if (null == previousScope)
+        replicaScope.remove();
+      else
+        replicaScope.set(previousScope);
+    }
+  }
+
+  boolean isReplicaScope()
+  {
+    return Boolean.TRUE.equals(replicaScope.get());
+  }
+
+  /**
+   * To be called whenever a physical connection is chosen, i.e. at the first statement of a transaction.
+   */
+  void recordStatement()
+  {
+    if (TransactionSynchronizationManager.isSynchronizationActive() && !isStatementRun())
+      TransactionSynchronizationManager.registerSynchronization(statementMarker);
+  }
+
+  private boolean isStatementRun()
+  {
+    return TransactionSynchronizationManager.getSynchronizations().contains(statementMarker);
+  }
+
+  private boolean isRecentlyModified(Long domainEntityId)
+  {
+    final long now = System.currentTimeMillis();
+    if (null == domainEntityId)
+      return now - lastModifiedAt <= stalenessMillis;
+
+    final Long modifiedAt = modifiedAtByDomainEntityId.get(domainEntityId);
+    return null != modifiedAt && now - modifiedAt <= stalenessMillis;
+  }
+
+  private boolean isOwnTransaction()
+  {
+    if (!TransactionSynchronizationManager.isActualTransactionActive()
+        || !TransactionSynchronizationManager.isSynchronizationActive())
+      return false;
+
+    try
+    {
+      // a new transaction may still have run statements before, e.g. lookups on cache misses
+      return TransactionAspectSupport.currentTransactionStatus().isNewTransaction() && !isStatementRun();
+    }
+    catch (NoTransactionException ex)
+    {
+      return false;
+    }
+  }
+}
@@ -0,0 +1,36 @@
+package com.nsn.acl.core.impl;
+
+import com.google.java.contract.Requires;
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+
+/**
+ * Routes connections of reads allowed by {@link AclReadReplicaRouter} to the {@link #REPLICA} target data source,
+ * everything else goes to the {@link #PRIMARY} one.
+ * <p>
+ * It has to be wrapped into {@link org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy}, so that
+ * the physical connection is chosen at the first statement of a transaction rather than at its beginning.
+ * The proxy needs its connection defaults configured, otherwise it fetches a connection to read them too early.
+ */
+public class AclReadRoutingDataSource
+    extends AbstractRoutingDataSource
+{
+  public static final String PRIMARY = "primary";
+  public static final String REPLICA = "replica";
+
+  private AclReadReplicaRouter readReplicaRouter;
+
+  @Requires("readReplicaRouter != null")
+  public void setReadReplicaRouter(AclReadReplicaRouter readReplicaRouter)
+  {
+    this.readReplicaRouter = readReplicaRouter;
+  }
+
+  @Override
+  protected Object determineCurrentLookupKey()
+  {
+    final Object result = readReplicaRouter.isReplicaScope() ? REPLICA : PRIMARY;
+    // the transaction is bound to this connection from now on
+    readReplicaRouter.recordStatement();
+    return result;
+  }
+}
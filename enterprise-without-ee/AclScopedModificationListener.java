@@ -0,0 +1,16 @@
+package com.nsn.acl.core;
+
+import com.google.java.contract.Ensures;
+
+import java.util.Collection;
+
+/**
+ * Modification listener which is called only for domain entities of the given classes and their child classes
+ * (see {@link AclService#isChildDomainEntityClass}), other listeners are called for all domain entities.
+ */
+public interface AclScopedModificationListener
+    extends AclModificationListener
+{
+  @Ensures("result != null")
+  Collection<Long> getDomainEntityClassIds();
+}
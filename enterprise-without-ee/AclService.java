@@ -7,7 +7,14 @@ import com.nsn.auth.core.UserNotFoundException;
 import com.nsn.common.core.Entity;
 import net.sf.ehcache.Ehcache;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
 
 public interface AclService
 {
@@ -22,6 +29,35 @@ public interface AclService
   @Ensures("result != null")
   AclSid getPrincipalSid(String userId);
 
+  /**
+   * A single entry of a group SID grants the permission to all members of the group.
+   */
+  @Requires("groupId != null")
+  @Ensures("result != null")
+  AclSid getGroupSid(String groupId);
+
+  @Requires({
+      "groupId != null",
+      "userId != null"
+  })
+  void addGroupMember(
+      String groupId,
+      String userId
+  )
+      throws
+      UserNotFoundException;
+
+  @Requires({
+      "groupId != null",
+      "userId != null"
+  })
+  void removeGroupMember(
+      String groupId,
+      String userId
+  )
+      throws
+      UserNotFoundException;
+
   //--------------------------------------------------------------------------------
   // Domain entity
   //--------------------------------------------------------------------------------
@@ -69,6 +105,26 @@ public interface AclService
       Long parentEntityId
   );
 
+  /**
+   * Moves the domain entity together with all its descendants under another parent at once: the subtree root is
+   * re-linked once, listeners are notified once about the subtree root and a single modification message
+   * covers all descendants.
+   *
+   * @param newParentEntityClass null to move the subtree under the root entity
+   */
+  @Requires({
+      "entityClass != null",
+      "! com.nsn.common.core.RootEntity.class.equals(entityClass)",
+      "entityId != null",
+      "null == newParentEntityClass && null == newParentEntityId || null != newParentEntityClass && null != newParentEntityId"
+  })
+  void moveSubtree(
+      Class<? extends Entity> entityClass,
+      Long entityId,
+      Class<? extends Entity> newParentEntityClass,
+      Long newParentEntityId
+  );
+
   @Requires({
       "entityClass != null",
       "entityId != null"
@@ -108,6 +164,39 @@ public interface AclService
       throws
       AclDomainEntityNotFoundException;
 
+  /**
+   * To be called by receivers of domain entity modification messages which don't tell the affected users,
+   * including ones sent by other nodes. Same as {@link #onDomainEntityModification(long[], String[])} with
+   * all users affected.
+   */
+  @Requires("modifiedDomainEntityIdList != null")
+  void onDomainEntityModification(long[] modifiedDomainEntityIdList);
+
+  /**
+   * To be called by receivers of domain entity modification messages, including ones sent by other nodes.
+   *
+   * @param modifiedUserIdList users whose permissions on the domain entities might have been granted, including
+   *                           members of affected groups, empty if only parents have been changed, null if unknown
+   */
+  @Requires("modifiedDomainEntityIdList != null")
+  void onDomainEntityModification(
+      long[] modifiedDomainEntityIdList,
+      String[] modifiedUserIdList
+  );
+
+  /**
+   * To be called by receivers of domain entity deletion messages, including ones sent by other nodes.
+   */
+  @Requires("deletedDomainEntityIdList != null")
+  void onDomainEntityDeletion(long[] deletedDomainEntityIdList);
+
+  /**
+   * To be called by receivers of domain entity modification messages carrying users whose group memberships
+   * have been changed, including ones sent by other nodes.
+   */
+  @Requires("userIdList != null")
+  void onGroupMembershipModification(String[] userIdList);
+
   //--------------------------------------------------------------------------------
   // Entry template
   //--------------------------------------------------------------------------------
@@ -127,6 +216,24 @@ public interface AclService
       String userId
   );
 
+  /**
+   * Bulk variant of {@link #getEntryTemplateByDomainEntityAndUser(Class, Long, String)},
+   * resolves all templates which aren't cached yet in a single query.
+   *
+   * @return templates by entity id, every given entity id is present
+   */
+  @Requires({
+      "entityClass != null",
+      "entityIds != null",
+      "userId != null"
+  })
+  @Ensures("result != null")
+  Map<Long, Collection<AclEntryTemplate>> getEntryTemplateByDomainEntitiesAndUser(
+      Class<? extends Entity> entityClass,
+      Collection<Long> entityIds,
+      String userId
+  );
+
   @Requires("entryTemplate != null")
   @Ensures("result != null")
   Long createEntryTemplate(AclEntryTemplate entryTemplate);
@@ -152,6 +259,62 @@ public interface AclService
       Long entryTemplateId
   );
 
+  /**
+   * Keyset pagination over entries of the user, memory use is bounded by pageSize regardless of the ACL size.
+   *
+   * @param afterEntryId the last entry id of the previous page, null for the first page
+   * @return at most pageSize entries in ascending order of entry id
+   */
+  @Requires({
+      "userId != null",
+      "pageSize > 0"
+  })
+  @Ensures("result != null")
+  List<AclEntryProjection> getEntryByUser(
+      String userId,
+      Long afterEntryId,
+      int pageSize
+  );
+
+  /**
+   * Lazily streams all pages of {@link #getEntryByUser(String, Long, int)}.
+   */
+  @Requires("userId != null")
+  @Ensures("result != null")
+  Stream<AclEntryProjection> streamEntryByUser(String userId);
+
+  /**
+   * Keyset pagination over entries of the user created from the template.
+   *
+   * @param afterEntryId the last entry id of the previous page, null for the first page
+   * @return at most pageSize entries in ascending order of entry id
+   */
+  @Requires({
+      "userId != null",
+      "entryTemplateId != null",
+      "pageSize > 0"
+  })
+  @Ensures("result != null")
+  List<AclEntryProjection> getEntryByUserAndTemplate(
+      String userId,
+      Long entryTemplateId,
+      Long afterEntryId,
+      int pageSize
+  );
+
+  /**
+   * Lazily streams all pages of {@link #getEntryByUserAndTemplate(String, Long, Long, int)}.
+   */
+  @Requires({
+      "userId != null",
+      "entryTemplateId != null"
+  })
+  @Ensures("result != null")
+  Stream<AclEntryProjection> streamEntryByUserAndTemplate(
+      String userId,
+      Long entryTemplateId
+  );
+
   @Requires({
       "entryTemplate != null",
       "userId != null"
@@ -178,6 +341,32 @@ public interface AclService
       throws
       UserNotFoundException;
 
+  @Requires({
+      "entityClass != null",
+      "entityId != null",
+      "entryTemplate != null",
+      "groupId != null"
+  })
+  void createGroupEntry(
+      Class<? extends Entity> entityClass,
+      Long entityId,
+      AclEntryTemplate entryTemplate,
+      String groupId
+  );
+
+  @Requires({
+      "entityClass != null",
+      "entityId != null",
+      "entryTemplateId != null",
+      "groupId != null"
+  })
+  void deleteGroupEntry(
+      Class<? extends Entity> entityClass,
+      Long entityId,
+      Long entryTemplateId,
+      String groupId
+  );
+
   @Requires({
       "entryTemplateId != null",
       "userId != null"
@@ -215,6 +404,36 @@ public interface AclService
       throws
       UserNotFoundException;
 
+  /**
+   * Applies all operations under a single lock of the user account and a single modification context flush.
+   */
+  @Requires({
+      "userId != null",
+      "operations != null"
+  })
+  void executeEntryOperations(
+      String userId,
+      List<AclEntryOperation> operations
+  )
+      throws
+      UserNotFoundException;
+
+  /**
+   * Group-commit variant of {@link #executeEntryOperations(String, List)}: operations submitted concurrently for
+   * the same user are queued and applied together in one transaction.
+   *
+   * @return future completed once the operation is committed, or completed exceptionally if it failed
+   */
+  @Requires({
+      "userId != null",
+      "operation != null"
+  })
+  @Ensures("result != null")
+  CompletableFuture<Void> submitEntryOperation(
+      String userId,
+      AclEntryOperation operation
+  );
+
   //--------------------------------------------------------------------------------
   // Modification context
   //--------------------------------------------------------------------------------
@@ -284,13 +503,175 @@ public interface AclService
       throws
       NoPermissionException;
 
+  /**
+   * Keyset pagination over ids of entities of the class the user holds the mask on, inherited entries included.
+   *
+   * @param afterEntityId the last entity id of the previous page, null for the first page
+   * @return at most pageSize entity ids in ascending order
+   */
+  @Requires({
+      "entityClass != null",
+      "permissionMask != null",
+      "userId != null",
+      "pageSize > 0"
+  })
+  @Ensures("result != null")
+  List<Long> getAccessibleEntityIds(
+      Class<? extends Entity> entityClass,
+      PermissionMask permissionMask,
+      String userId,
+      Long afterEntityId,
+      int pageSize
+  );
+
+  /**
+   * Lazily streams all pages of {@link #getAccessibleEntityIds(Class, PermissionMask, String, Long, int)}.
+   */
+  @Requires({
+      "entityClass != null",
+      "permissionMask != null",
+      "userId != null"
+  })
+  @Ensures("result != null")
+  LongStream streamAccessibleEntityIds(
+      Class<? extends Entity> entityClass,
+      PermissionMask permissionMask,
+      String userId
+  );
+
+  /**
+   * Keyset pagination over ids of users holding the mask on the entity, inherited entries included.
+   *
+   * @param afterUserId the last user id of the previous page, null for the first page
+   * @return at most pageSize user ids in ascending order
+   */
+  @Requires({
+      "entityClass != null",
+      "entityId != null",
+      "permissionMask != null",
+      "pageSize > 0"
+  })
+  @Ensures("result != null")
+  List<String> getPrincipalsWithPermission(
+      Class<? extends Entity> entityClass,
+      Long entityId,
+      PermissionMask permissionMask,
+      String afterUserId,
+      int pageSize
+  );
+
+  /**
+   * Lazily streams all pages of {@link #getPrincipalsWithPermission(Class, Long, PermissionMask, String, int)}.
+   */
+  @Requires({
+      "entityClass != null",
+      "entityId != null",
+      "permissionMask != null"
+  })
+  @Ensures("result != null")
+  Stream<String> streamPrincipalsWithPermission(
+      Class<? extends Entity> entityClass,
+      Long entityId,
+      PermissionMask permissionMask
+  );
+
+  /**
+   * @throws IllegalStateException if caches are partitioned, see {@link #getHasPermissionCacheName(String, Long)}
+   */
   @Requires("userId != null")
   @Ensures("result != null")
   String getHasPermissionCacheName(String userId);
 
+  /**
+   * @throws IllegalStateException if caches are partitioned, a user has no single cache then,
+   *                               see {@link #getHasPermissionCache(String, Long)}
+   */
   @Requires("userId != null")
   @Ensures("result != null")
   Ehcache getHasPermissionCache(String userId);
 
+  @Requires({
+      "userId != null",
+      "domainEntityClassId != null"
+  })
+  @Ensures("result != null")
+  String getHasPermissionCacheName(
+      String userId,
+      Long domainEntityClassId
+  );
+
+  /**
+   * If caches are partitioned by domain entity class, modifications within one class invalidate only its partition.
+   *
+   * @return partition of the user's permission cache for domain entities of the class,
+   *         {@link #getHasPermissionCache(String)} if caches aren't partitioned
+   */
+  @Requires({
+      "userId != null",
+      "domainEntityClassId != null"
+  })
+  @Ensures("result != null")
+  Ehcache getHasPermissionCache(
+      String userId,
+      Long domainEntityClassId
+  );
+
   void invalidateHasPermissionCache();
+
+  /**
+   * Invalidates all partitions of the user's cache if caches are partitioned.
+   */
+  @Requires("userId != null")
+  void invalidateHasPermissionCache(String userId);
+
+  /**
+   * Invalidates the partition of the class only, or the whole cache of the user if caches aren't partitioned.
+   */
+  @Requires({
+      "userId != null",
+      "domainEntityClassId != null"
+  })
+  void invalidateHasPermissionCache(
+      String userId,
+      Long domainEntityClassId
+  );
+
+  /**
+   * Fills the permission cache of the user with grants of the most frequently checked entity classes and masks.
+   * Done in the background when a cache is created if a preloader is configured.
+   */
+  @Requires("userId != null")
+  void preloadHasPermissionCache(String userId);
+
+  /**
+   * @return the latest sampled or slow permission checks, empty if tracing isn't enabled
+   */
+  @Ensures("result != null")
+  List<AclPermissionCheckTrace> getPermissionCheckTraces();
+
+  //--------------------------------------------------------------------------------
+  // Snapshot
+  //--------------------------------------------------------------------------------
+
+  /**
+   * Writes a versioned binary snapshot of SIDs, domain entity classes, the domain entity tree and entries.
+   */
+  @Requires("file != null")
+  void exportSnapshot(File file)
+      throws
+      IOException;
+
+  /**
+   * Memory-maps a snapshot written by {@link #exportSnapshot(File)} and serves lookups from it until caches
+   * are warmed up, i.e. for a bounded time after the start of the node. Domain entities reported by
+   * {@link #onDomainEntityModification(long[])} and {@link #onDomainEntityDeletion(long[])} since the start of
+   * the node are looked up in the DB.
+   *
+   * @throws IllegalStateException if the warm-up is over or the snapshot is older than replayed modification
+   *                               messages reach back, so it could miss modifications
+   */
+  @Requires("file != null")
+  void importSnapshot(File file)
+      throws
+      IOException;
 }
@@ -1,5 +1,6 @@
 package com.nsn.acl.core.impl;
 
+import com.google.common.collect.Iterables;
 import com.google.common.primitives.Longs;
 import com.google.java.contract.Ensures;
 import com.google.java.contract.Requires;
@@ -21,18 +22,35 @@ import net.sf.ehcache.CacheManager;
 import net.sf.ehcache.Ehcache;
 import net.sf.ehcache.Element;
 import org.springframework.cache.annotation.Cacheable;
+import org.springframework.cache.interceptor.SimpleKey;
 
 import javax.annotation.PostConstruct;
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 
 public class AclServiceImpl
     extends AbstractService
     implements AclService,
                InitializingBean
 {
+  private static final String DOMAIN_ENTITY_ID_CACHE_NAME = "com.nsn.acl.core.AclDomainEntityIdCache";
+  private static final String ENTRY_TEMPLATE_CACHE_NAME = "com.nsn.acl.core.AclEntryTemplateCache";
+  private static final String ENTRY_TEMPLATE_BY_DOMAIN_ENTITY_AND_SID_CACHE_NAME =
+      "com.nsn.acl.core.AclEntryTemplateByDomainEntityAndSidCache";
+
   private AclService self;
   private UserService userService;
   private AclSidDao sidDao;
@@ -42,12 +60,41 @@ public class AclServiceImpl
   private AclDomainEntityDeletionMessageSender domainEntityDeletionMessageSender;
   private AclEntryTemplateDao entryTemplateDao;
   private AclEntryDao entryDao;
+  private AclEffectiveEntryDao effectiveEntryDao; // optional, entries are evaluated at query time if not set
+  private AclDomainEntityClosureDao domainEntityClosureDao; // optional, parent links are walked if not set
+  private AclSidMembershipDao sidMembershipDao; // optional, group SIDs aren't supported if not set
   private AclModificationListenerRegister modificationListenerRegister;
   private ThreadLocal<AclModificationContext> modificationContext;
+  private ThreadLocal<AclEntryOperationLog> entryOperationLog; // entry operations of modificationContext in order
   private EhCacheTemplateFactoryBean hasPermissionCacheTemplateFactoryBean;
 
   private String hasPermissionCacheNamePrefix;
-  private Map<String, Ehcache> hasPermissionCaches = new HashMap<>();
+  private Map<String, Ehcache> hasPermissionCaches = new ConcurrentHashMap<>();
+  // dropped by the last rebalance, disposed by the next one, touched by the rebalancing thread only
+  private Set<String> retiredHasPermissionCacheNames = new HashSet<>();
+  private Map<String, Set<Long>> hasPermissionCachePartitions = new HashMap<>();
+  private boolean hasPermissionCachePartitioned; // caches are per user only if not set
+  private final AclHasPermissionCacheGenerations hasPermissionCacheGenerations = new AclHasPermissionCacheGenerations();
+  private volatile AclSnapshot snapshot;
+  private volatile long snapshotRetiresAt;
+  private long snapshotWarmUpMillis = TimeUnit.MINUTES.toMillis(10);
+  private long snapshotMessageReplayMillis; // snapshots created before this node started are rejected if not set
+  private long startedAt;
+  // modified before a snapshot got imported, guarded by itself
+  private final Set<Long> pendingStaleDomainEntityIds = new HashSet<>();
+  private int streamPageSize = 1000;
+  private AclPermissionCheckTracer permissionCheckTracer; // optional
+  private Executor groupCommitExecutor; // optional, enables group commit of entry operations
+  private int groupCommitMaxBatchSize = 100;
+  private AclHasPermissionCacheBudget hasPermissionCacheBudget; // optional, caches keep template limits if not set
+  private AclReadReplicaRouter readReplicaRouter; // optional, all reads go to the primary if not set
+  private AclHasPermissionCachePreloader hasPermissionCachePreloader; // optional, caches start empty if not set
+  private AclFastDenyFilter fastDenyFilter; // optional, every cache miss goes to the DB if not set
+  private AclGroupCommitter groupCommitter;
+  private AclCacheKeyIndex entryTemplateCacheKeyIndex; // null if the cache isn't configured
+  private AclCacheKeyIndex entryTemplateByDomainEntityAndSidCacheKeyIndex; // null if the cache isn't configured
+  // bumped by every template cache eviction, so that values loaded before it aren't cached after it
+  private final AtomicLong entryTemplateCacheGeneration = new AtomicLong();
 
   @Requires("self != null")
   public void setSelf(AclService self)
@@ -103,23 +150,138 @@ public class AclServiceImpl
     this.entryDao = entryDao;
   }
 
+  @Requires("effectiveEntryDao != null")
+  public void setEffectiveEntryDao(AclEffectiveEntryDao effectiveEntryDao)
+  {
+    this.effectiveEntryDao = effectiveEntryDao;
+  }
+
+  @Requires("sidMembershipDao != null")
+  public void setSidMembershipDao(AclSidMembershipDao sidMembershipDao)
+  {
+    this.sidMembershipDao = sidMembershipDao;
+  }
+
+  @Requires("domainEntityClosureDao != null")
+  public void setDomainEntityClosureDao(AclDomainEntityClosureDao domainEntityClosureDao)
+  {
+    this.domainEntityClosureDao = domainEntityClosureDao;
+  }
+
   @Requires("modificationListenerRegister != null")
   public void setModificationListenerRegister(AclModificationListenerRegister modificationListenerRegister)
   {
     this.modificationListenerRegister = modificationListenerRegister;
   }
 
+  @Requires("streamPageSize > 0")
+  public void setStreamPageSize(int streamPageSize)
+  {
+    this.streamPageSize = streamPageSize;
+  }
+
+  /**
+   * @param snapshotWarmUpMillis time after the start of the node until an imported snapshot is retired,
+   *                             snapshots can't be imported later than that
+   */
+  @Requires("snapshotWarmUpMillis > 0")
+  public void setSnapshotWarmUpMillis(long snapshotWarmUpMillis)
+  {
+    this.snapshotWarmUpMillis = snapshotWarmUpMillis;
+  }
+
+  /**
+   * @param snapshotMessageReplayMillis how far back modification messages are delivered to a starting node,
+   *                                    older snapshots could miss modifications and are rejected
+   */
+  @Requires("snapshotMessageReplayMillis >= 0")
+  public void setSnapshotMessageReplayMillis(long snapshotMessageReplayMillis)
+  {
+    this.snapshotMessageReplayMillis = snapshotMessageReplayMillis;
+  }
+
+  @Requires("permissionCheckTracer != null")
+  public void setPermissionCheckTracer(AclPermissionCheckTracer permissionCheckTracer)
+  {
+    this.permissionCheckTracer = permissionCheckTracer;
+  }
+
+  @Requires("groupCommitExecutor != null")
+  public void setGroupCommitExecutor(Executor groupCommitExecutor)
+  {
+    this.groupCommitExecutor = groupCommitExecutor;
+  }
+
+  @Requires("groupCommitMaxBatchSize > 0")
+  public void setGroupCommitMaxBatchSize(int groupCommitMaxBatchSize)
+  {
+    this.groupCommitMaxBatchSize = groupCommitMaxBatchSize;
+  }
+
   @Requires("hasPermissionCacheTemplateFactoryBean != null")
   public void setHasPermissionCacheTemplateFactoryBean(EhCacheTemplateFactoryBean hasPermissionCacheTemplateFactoryBean)
   {
     this.hasPermissionCacheTemplateFactoryBean = hasPermissionCacheTemplateFactoryBean;
   }
 
+  public void setHasPermissionCachePartitioned(boolean hasPermissionCachePartitioned)
+  {
+    this.hasPermissionCachePartitioned = hasPermissionCachePartitioned;
+  }
+
+  @Requires("fastDenyFilter != null")
+  public void setFastDenyFilter(AclFastDenyFilter fastDenyFilter)
+  {
+    this.fastDenyFilter = fastDenyFilter;
+  }
+
+  @Requires("hasPermissionCachePreloader != null")
+  public void setHasPermissionCachePreloader(AclHasPermissionCachePreloader hasPermissionCachePreloader)
+  {
+    this.hasPermissionCachePreloader = hasPermissionCachePreloader;
+  }
+
+  @Requires("hasPermissionCacheBudget != null")
+  public void setHasPermissionCacheBudget(AclHasPermissionCacheBudget hasPermissionCacheBudget)
+  {
+    this.hasPermissionCacheBudget = hasPermissionCacheBudget;
+  }
+
+  @Requires("readReplicaRouter != null")
+  public void setReadReplicaRouter(AclReadReplicaRouter readReplicaRouter)
+  {
+    this.readReplicaRouter = readReplicaRouter;
+  }
+
   @Override
   @PostConstruct
   public void afterPropertiesSet()
   {
     modificationContext = threadLocalFactory.create();
+    entryOperationLog = threadLocalFactory.create();
+    startedAt = System.currentTimeMillis();
+
+    checkState(null == hasPermissionCachePreloader || null != effectiveEntryDao,
+        "Effective entry store is required to preload permission caches.");
+    // walking parent links would take a query per tree level on every uncached ancestor chain
+    checkState(null == fastDenyFilter || null != domainEntityClosureDao,
+        "Domain entity closure store is required by the fast deny filter.");
+
+    Ehcache cache = CacheManager.getInstance().getEhcache(ENTRY_TEMPLATE_CACHE_NAME);
+    if (null != cache)
+      entryTemplateCacheKeyIndex = AclCacheKeyIndex.register(cache,
+          element -> ((AclEntryTemplate) element.getObjectValue()).getDomainEntity().getId());
+    cache = CacheManager.getInstance().getEhcache(ENTRY_TEMPLATE_BY_DOMAIN_ENTITY_AND_SID_CACHE_NAME);
+    if (null != cache)
+      entryTemplateByDomainEntityAndSidCacheKeyIndex = AclCacheKeyIndex.register(cache,
+          element -> ((AclEntryTemplateCacheKey) element.getObjectKey()).getDomainEntityId());
+
+    if (null != hasPermissionCacheBudget)
+      hasPermissionCacheBudget.schedule(this::rebalanceHasPermissionCaches);
+
+    if (null != groupCommitExecutor)
+      groupCommitter = new AclGroupCommitter(groupCommitExecutor, groupCommitMaxBatchSize,
+          (userId, operations) -> self.executeEntryOperations(userId, operations));
   }
 
   @Override
@@ -144,6 +306,98 @@ public class AclServiceImpl
     return result;
   }
 
+  @Override
+  @MainTransactional
+  @Cacheable("com.nsn.acl.core.AclGroupSidCache")
+  public AclSid getGroupSid(String groupId)
+  {
+    checkState(null != sidMembershipDao, "SID membership store is required for group SIDs.");
+
+    // lock entire sid list to serialize creation
+    if (null == sidDao.getBySidAndPrincipalForUpdate(User.SYSTEM_ADMINISTRATOR, true))
+      throw new IllegalStateException(User.SYSTEM_ADMINISTRATOR + " SID not found.");
+
+    AclSid result = sidDao.getBySidAndPrincipal(groupId, false);
+    if (null == result)
+    {
+      result = new AclSid();
+      result.setSid(groupId);
+      result.setIsPrincipal(false);
+      sidDao.create(result);
+      mainDbHelper.flush();
+    }
+
+    return result;
+  }
+
+  @Override
+  @MainTransactional
+  public void addGroupMember(
+      String groupId,
+      String userId
+  )
+      throws
+      UserNotFoundException
+  {
+    // lock user account to serialize permission give/revoke actions
+    if (null == userService.getUserForUpdate(userId))
+      throw new UserNotFoundException(userId);
+
+    // lock group SID as well, members of a group whose entries are being modified are resolved before commit,
+    // so a membership change must not slip in between
+    final Long groupSidId = self.getGroupSid(groupId).getId();
+    sidDao.getBySidAndPrincipalForUpdate(groupId, false);
+    final Long principalSidId = self.getPrincipalSid(userId).getId();
+    if (sidMembershipDao.exists(groupSidId, principalSidId))
+      return;
+
+    sidMembershipDao.create(groupSidId, principalSidId);
+    mainDbHelper.flush();
+    // grants of the group are shared, only the member's own permissions are changed
+    sendGroupMembershipModificationMessage(new String[] {userId});
+  }
+
+  @Override
+  @MainTransactional
+  public void removeGroupMember(
+      String groupId,
+      String userId
+  )
+      throws
+      UserNotFoundException
+  {
+    // lock user account to serialize permission give/revoke actions
+    if (null == userService.getUserForUpdate(userId))
+      throw new UserNotFoundException(userId);
+
+    // lock group SID as well, members of a group whose entries are being modified are resolved before commit,
+    // so a membership change must not slip in between
+    final Long groupSidId = self.getGroupSid(groupId).getId();
+    sidDao.getBySidAndPrincipalForUpdate(groupId, false);
+    final Long principalSidId = self.getPrincipalSid(userId).getId();
+    if (!sidMembershipDao.exists(groupSidId, principalSidId))
+      return;
+
+    sidMembershipDao.delete(groupSidId, principalSidId);
+    mainDbHelper.flush();
+    sendGroupMembershipModificationMessage(new String[] {userId});
+  }
+
+  /**
+   * @return principal SID of the user followed by group SIDs the user is member of
+   */
+  @Requires("userId != null")
+  @Ensures("result != null")
+  private List<Long> getSidIds(String userId)
+  {
+    List<Long> result = new ArrayList<>();
+    result.add(self.getPrincipalSid(userId).getId());
+    if (null != sidMembershipDao)
+      result.addAll(sidMembershipDao.getGroupSidIds(result.get(0)));
+
+    return result;
+  }
+
   @Override
   @MainTransactional
   @Cacheable("com.nsn.acl.core.AclDomainEntityClassCacheById")
@@ -184,6 +438,8 @@ public class AclServiceImpl
   }
 
   @Override
+  @MainTransactional
+  @Cacheable("com.nsn.acl.core.AclDomainEntityClassChildCache")
   public boolean isChildDomainEntityClass(
       Long parentDomainEntityClassId,
       Long childDomainEntityClassId
@@ -230,15 +486,25 @@ public class AclServiceImpl
       domainEntityDao.create(domainEntity);
 
       mainDbHelper.flush();
+      if (null != domainEntityClosureDao)
+        domainEntityClosureDao.create(domainEntity.getId(), parentDomainEntity.getId());
+      if (null != effectiveEntryDao)
+        // inherit effective grants of the parent
+        effectiveEntryDao.recomputeSubtree(domainEntity.getId());
       try
       {
-        for (AclModificationListener modificationListener : modificationListenerRegister.getListeners())
+        // a new domain entity is a leaf
+        for (AclModificationListener modificationListener : getModificationListeners(
+            domainEntity.getDomainEntityClass().getId()))
           modificationListener.afterCreateDomainEntity(domainEntity.getId());
       }
       catch (Exception ex)
       {
         throw new IllegalStateException(ex.getMessage(), ex);
       }
+
+      // a lagging replica doesn't know the new domain entity yet, reads of it have to go to the primary
+      sendDomainEntityModificationMessage(new long[] {domainEntity.getId()}, new String[0]);
     }
     else
     {
@@ -249,11 +515,18 @@ public class AclServiceImpl
       mainDbHelper.flush();
       // according to existing logic parentDomainEntity always is not null
       if (null == previousParentDomainEntity || ! parentDomainEntity.getId().equals(previousParentDomainEntity.getId()))
+      {
+        if (null != domainEntityClosureDao)
+          domainEntityClosureDao.move(domainEntity.getId(), parentDomainEntity.getId());
+        if (null != effectiveEntryDao)
+          // inherited grants of the whole subtree are changed
+          effectiveEntryDao.recomputeSubtree(domainEntity.getId());
+
         try
         {
           final Long previousParentDomainEntityId =
               (null == previousParentDomainEntity) ? null : previousParentDomainEntity.getId();
-          for (AclModificationListener modificationListener : modificationListenerRegister.getListeners())
+          for (AclModificationListener modificationListener : getModificationListeners(domainEntity))
             modificationListener.afterDomainEntityParentChange(domainEntity.getId(),
                 previousParentDomainEntityId, parentDomainEntity.getId());
         }
@@ -262,13 +535,103 @@ public class AclServiceImpl
           throw new IllegalStateException(ex.getMessage(), ex);
         }
 
-      final long domainEntityId = domainEntity.getId();
-      mainDbHelper.afterCommit(() -> {
-        AclDomainEntityModificationMessagePayload messagePayload = new AclDomainEntityModificationMessagePayload();
-        messagePayload.setModifiedDomainEntityIdList(new long[] {domainEntityId});
-        domainEntityModificationMessageSender.send(messagePayload);
-      });
+        // inherited permissions of any user might be changed
+        mainDbHelper.afterCommit(() -> self.invalidateHasPermissionCache());
+      }
+
+      // no entries are touched, only ancestors might be changed
+      sendDomainEntityModificationMessage(new long[] {domainEntity.getId()}, new String[0]);
+    }
+  }
+
+  @Override
+  @MainTransactional
+  public void moveSubtree(
+      Class<? extends Entity> entityClass,
+      Long entityId,
+      Class<? extends Entity> newParentEntityClass,
+      Long newParentEntityId
+  )
+  {
+    // lock entire tree of business domain entities
+    AclDomainEntity rootDomainEntity = domainEntityDao.getByClassAndIdForUpdate(
+        self.getDomainEntityClass(RootEntity.class).getClazz(), RootEntity.DEFAULT_ROOT_ENTITY_ID);
+    if (null == rootDomainEntity)
+      throw new AclDomainEntityNotFoundException(RootEntity.class, RootEntity.DEFAULT_ROOT_ENTITY_ID);
+
+    AclDomainEntity newParentDomainEntity;
+    if (null != newParentEntityClass && null != newParentEntityId)
+    {
+      newParentDomainEntity = domainEntityDao.getByClassAndId(
+          self.getDomainEntityClass(newParentEntityClass).getClazz(), newParentEntityId);
+      if (null == newParentDomainEntity)
+        throw new AclDomainEntityNotFoundException(newParentEntityClass, newParentEntityId);
+    }
+    else
+      newParentDomainEntity = rootDomainEntity;
+
+    // lock subtree root
+    AclDomainEntity domainEntity = domainEntityDao.getByClassAndIdForUpdate(entityClass.getName(), entityId);
+    if (null == domainEntity)
+      throw new AclDomainEntityNotFoundException(entityClass, entityId);
+
+    final AclDomainEntity previousParentDomainEntity = domainEntity.getParent();
+    if (null != previousParentDomainEntity && newParentDomainEntity.getId().equals(previousParentDomainEntity.getId()))
+      return;
+
+    final List<Long> subtreeDomainEntityIds = getSubtreeDomainEntityIds(domainEntity.getId());
+    checkArgument(!subtreeDomainEntityIds.contains(newParentDomainEntity.getId()),
+        "Domain entity %s can't be moved into its own subtree.", domainEntity.getId());
+
+    domainEntity.setParent(newParentDomainEntity);
+    domainEntityDao.update(domainEntity);
+
+    mainDbHelper.flush();
+    if (null != domainEntityClosureDao)
+      domainEntityClosureDao.move(domainEntity.getId(), newParentDomainEntity.getId());
+    if (null != effectiveEntryDao)
+      effectiveEntryDao.recomputeSubtree(domainEntity.getId());
+
+    try
+    {
+      final Long previousParentDomainEntityId =
+          (null == previousParentDomainEntity) ? null : previousParentDomainEntity.getId();
+      // descendants keep their parents, only the subtree root is re-linked
+      for (AclModificationListener modificationListener : getModificationListeners(domainEntity))
+        modificationListener.afterDomainEntityParentChange(domainEntity.getId(),
+            previousParentDomainEntityId, newParentDomainEntity.getId());
+    }
+    catch (Exception ex)
+    {
+      throw new IllegalStateException(ex.getMessage(), ex);
+    }
+
+    // inherited permissions of every descendant are changed
+    mainDbHelper.afterCommit(() -> self.invalidateHasPermissionCache());
+    sendDomainEntityModificationMessage(Longs.toArray(subtreeDomainEntityIds), new String[0]);
+  }
+
+  /**
+   * @return the subtree root followed by all its descendants, level by level
+   */
+  @Requires("subtreeRootId != null")
+  @Ensures("result != null")
+  private List<Long> getSubtreeDomainEntityIds(Long subtreeRootId)
+  {
+    if (null != domainEntityClosureDao)
+      return domainEntityClosureDao.getDescendantIds(subtreeRootId);
+
+    List<Long> result = new ArrayList<>();
+    result.add(subtreeRootId);
+    List<Long> level = Collections.singletonList(subtreeRootId);
+    while (!level.isEmpty())
+    {
+      // a query per tree level, not per domain entity
+      level = domainEntityDao.getIdsByParentIds(level);
+      result.addAll(level);
     }
+
+    return result;
   }
 
   @Override
@@ -290,7 +653,7 @@ public class AclServiceImpl
 
     try
     {
-      for (AclModificationListener modificationListener : modificationListenerRegister.getListeners())
+      for (AclModificationListener modificationListener : getModificationListeners(domainEntity))
         modificationListener.beforeDeleteDomainEntity(domainEntity.getId());
     }
     catch (Exception ex)
@@ -301,24 +664,151 @@ public class AclServiceImpl
     // it expects that external users of ACL (e.g. role system from "auth") removed any usage of this domain entity
     // i.e. there are no ACL entries and/or entry templates which refer to this domain entity
 
+    if (null != effectiveEntryDao)
+      effectiveEntryDao.deleteByDomainEntity(domainEntity.getId());
+    if (null != domainEntityClosureDao)
+      domainEntityClosureDao.delete(domainEntity.getId());
     domainEntityDao.delete(domainEntity.getId());
 
     mainDbHelper.flush();
-    final long domainEntityId = domainEntity.getId();
+    sendDomainEntityDeletionMessage(new long[] {domainEntity.getId()});
+  }
+
+  /**
+   * @param userIds see {@link #onDomainEntityModification(long[], String[])}
+   */
+  @Requires({
+      "domainEntityIds != null",
+      "userIds != null"
+  })
+  private void sendDomainEntityModificationMessage(
+      final long[] domainEntityIds,
+      final String[] userIds
+  )
+  {
+    // this node must stop trusting its own stale state right away, not after the message gets back to it
+    onDomainEntityModification(domainEntityIds, userIds);
+
+    mainDbHelper.afterCommit(() -> {
+      // once again, caches might have been filled with pre-commit state meanwhile
+      onDomainEntityModification(domainEntityIds, userIds);
+
+      AclDomainEntityModificationMessagePayload messagePayload = new AclDomainEntityModificationMessagePayload();
+      messagePayload.setModifiedDomainEntityIdList(domainEntityIds);
+      messagePayload.setModifiedUserIdList(userIds);
+      domainEntityModificationMessageSender.send(messagePayload);
+    });
+  }
+
+  @Requires("domainEntityIds != null")
+  private void sendDomainEntityDeletionMessage(final long[] domainEntityIds)
+  {
+    onDomainEntityDeletion(domainEntityIds);
+
     mainDbHelper.afterCommit(() -> {
+      onDomainEntityDeletion(domainEntityIds);
+
       AclDomainEntityDeletionMessagePayload messagePayload = new AclDomainEntityDeletionMessagePayload();
-      messagePayload.setDeletedDomainEntityIdList(new long[] { domainEntityId });
+      messagePayload.setDeletedDomainEntityIdList(domainEntityIds);
       domainEntityDeletionMessageSender.send(messagePayload);
     });
   }
 
+  /**
+   * Membership changes go out with the domain entity modification message, receivers pass them to
+   * {@link #onGroupMembershipModification(String[])} on every node.
+   */
+  @Requires("userIds != null")
+  private void sendGroupMembershipModificationMessage(final String[] userIds)
+  {
+    onGroupMembershipModification(userIds);
+
+    mainDbHelper.afterCommit(() -> {
+      onGroupMembershipModification(userIds);
+
+      AclDomainEntityModificationMessagePayload messagePayload = new AclDomainEntityModificationMessagePayload();
+      messagePayload.setModifiedDomainEntityIdList(new long[0]);
+      messagePayload.setModifiedMemberUserIdList(userIds);
+      domainEntityModificationMessageSender.send(messagePayload);
+    });
+  }
+
+  @Override
+  public void onGroupMembershipModification(String[] userIdList)
+  {
+    // SIDs of the users are changed, so are their permissions on any domain entity the group has entries on
+    for (String userId : userIdList)
+      self.invalidateHasPermissionCache(userId);
+  }
+
+  @Override
+  public void onDomainEntityModification(long[] modifiedDomainEntityIdList)
+  {
+    onDomainEntityModification(modifiedDomainEntityIdList, null);
+  }
+
+  @Override
+  public void onDomainEntityModification(
+      long[] modifiedDomainEntityIdList,
+      String[] modifiedUserIdList
+  )
+  {
+    if (null != readReplicaRouter)
+      readReplicaRouter.recordModification(modifiedDomainEntityIdList);
+
+    markSnapshotStale(modifiedDomainEntityIdList);
+
+    if (null != fastDenyFilter)
+    {
+      fastDenyFilter.onEntryModification(modifiedDomainEntityIdList, modifiedUserIdList);
+      // messages don't tell reparenting from entry modifications
+      fastDenyFilter.onTreeModification(modifiedDomainEntityIdList);
+    }
+
+    evictEntryTemplateCaches(modifiedDomainEntityIdList);
+  }
+
+  @Override
+  public void onDomainEntityDeletion(long[] deletedDomainEntityIdList)
+  {
+    if (null != readReplicaRouter)
+      readReplicaRouter.recordModification(deletedDomainEntityIdList);
+
+    markSnapshotStale(deletedDomainEntityIdList);
+
+    if (null != fastDenyFilter)
+      // deleted domain entities have no entries left to add
+      fastDenyFilter.onTreeModification(deletedDomainEntityIdList);
+
+    evictEntryTemplateCaches(deletedDomainEntityIdList);
+  }
+
+  @Requires("domainEntityIds != null")
+  private void evictEntryTemplateCaches(long[] domainEntityIds)
+  {
+    entryTemplateCacheGeneration.incrementAndGet();
+    // keys are looked up per domain entity rather than by scanning the caches, see AclCacheKeyIndex
+    if (null != entryTemplateByDomainEntityAndSidCacheKeyIndex)
+      entryTemplateByDomainEntityAndSidCacheKeyIndex.evict(domainEntityIds);
+    if (null != entryTemplateCacheKeyIndex)
+      entryTemplateCacheKeyIndex.evict(domainEntityIds);
+  }
+
   @Override
-  @Cacheable("com.nsn.acl.core.AclDomainEntityIdCache")
+  @Cacheable(DOMAIN_ENTITY_ID_CACHE_NAME)
   public Long getDomainEntityId(
       Class<? extends Entity> entityClass,
       Long entityId
   )
   {
+    AclSnapshot currentSnapshot = getSnapshot();
+    if (null != currentSnapshot)
+    {
+      Long result = currentSnapshot.getDomainEntityId(entityClass.getName(), entityId);
+      if (null != result)
+        return result;
+    }
+
     Long result = domainEntityDao.getByClassAndId(entityClass.getName(), entityId).getId();
     if (null == result)
       // it's important to error here not to get 'null' being cached
@@ -327,13 +817,63 @@ public class AclServiceImpl
     return result;
   }
 
+  /**
+   * Bulk variant of {@link #getDomainEntityId(Class, Long)}, ids neither cached by it nor known to the snapshot are
+   * resolved by a single query.
+   *
+   * @return domain entity ids by entity id
+   */
+  @Requires({
+      "entityClass != null",
+      "entityIds != null"
+  })
+  @Ensures("result != null")
+  private Map<Long, Long> getDomainEntityIds(
+      Class<? extends Entity> entityClass,
+      Collection<Long> entityIds
+  )
+  {
+    Ehcache cache = CacheManager.getInstance().getEhcache(DOMAIN_ENTITY_ID_CACHE_NAME);
+    AclSnapshot currentSnapshot = getSnapshot();
+    Map<Long, Long> result = new HashMap<>();
+    List<Long> missingEntityIds = new ArrayList<>();
+    for (Long entityId : entityIds)
+    {
+      // same key as the one generated for getDomainEntityId
+      Element element = (null == cache) ? null : cache.get(new SimpleKey(entityClass, entityId));
+      Long domainEntityId = (null == element) ? null : (Long) element.getObjectValue();
+      if (null == domainEntityId && null != currentSnapshot)
+        domainEntityId = currentSnapshot.getDomainEntityId(entityClass.getName(), entityId);
+      if (null == domainEntityId)
+        missingEntityIds.add(entityId);
+      else
+        result.put(entityId, domainEntityId);
+    }
+
+    if (missingEntityIds.isEmpty())
+      return result;
+
+    Map<Long, Long> loaded = domainEntityDao.getIdsByClassAndIds(entityClass.getName(), missingEntityIds);
+    for (Long entityId : missingEntityIds)
+    {
+      final Long domainEntityId = loaded.get(entityId);
+      if (null == domainEntityId)
+        throw new AclDomainEntityNotFoundException(entityClass, entityId);
+      if (null != cache)
+        cache.put(new Element(new SimpleKey(entityClass, entityId), domainEntityId));
+      result.put(entityId, domainEntityId);
+    }
+
+    return result;
+  }
+
   @Override
-  @MainTransactional
   public AclDomainEntity getDomainEntity(
       Class<? extends Entity> entityClass,
       Long entityId
   )
   {
+    // not transactional, so that the read below starts its own transaction and may go to the replica
     return self.getDomainEntity(self.getDomainEntityId(entityClass, entityId));
   }
 
@@ -341,7 +881,7 @@ public class AclServiceImpl
   @MainTransactional
   public AclDomainEntity getDomainEntity(Long domainEntityId)
   {
-    AclDomainEntity result = domainEntityDao.getById(domainEntityId);
+    AclDomainEntity result = readFromReplica(domainEntityId, () -> domainEntityDao.getById(domainEntityId));
     if (null == result)
       throw new AclDomainEntityNotFoundException(domainEntityId);
 
@@ -351,17 +891,108 @@ public class AclServiceImpl
   @Override
   public AclEntryTemplate getEntryTemplate(Long entryTemplateId)
   {
-    return entryTemplateDao.getById(entryTemplateId);
+    // the cache is optional like the other template cache, so it's not left to @Cacheable
+    Ehcache cache = CacheManager.getInstance().getEhcache(ENTRY_TEMPLATE_CACHE_NAME);
+    if (null == cache)
+      return entryTemplateDao.getById(entryTemplateId);
+
+    Element element = cache.get(entryTemplateId);
+    if (null != element)
+      return (AclEntryTemplate) element.getObjectValue();
+
+    final long generation = entryTemplateCacheGeneration.get();
+    AclEntryTemplate result = entryTemplateDao.getById(entryTemplateId);
+    if (null != result)
+      putEntryTemplateCacheElement(cache, new Element(entryTemplateId, result), generation);
+
+    return result;
   }
 
   @Override
+  @MainTransactional
   public Collection<AclEntryTemplate> getEntryTemplateByDomainEntityAndUser(
       Class<? extends Entity> entityClass,
       Long entityId,
       String userId
   )
   {
-    return entryTemplateDao.getByDomainEntityAndPrincipalSid(entityClass, entityId, userId);
+    final Long domainEntityId = self.getDomainEntityId(entityClass, entityId);
+    Ehcache cache = CacheManager.getInstance().getEhcache(ENTRY_TEMPLATE_BY_DOMAIN_ENTITY_AND_SID_CACHE_NAME);
+    if (null == cache)
+      return readFromReplica(domainEntityId,
+          () -> entryTemplateDao.getByDomainEntityAndPrincipalSid(entityClass, entityId, userId));
+
+    AclEntryTemplateCacheKey key = new AclEntryTemplateCacheKey(domainEntityId, userId);
+    Element element = cache.get(key);
+    if (null == element)
+    {
+      final long generation = entryTemplateCacheGeneration.get();
+      element = new Element(key, Collections.unmodifiableList(new ArrayList<>(readFromReplica(domainEntityId,
+          () -> entryTemplateDao.getByDomainEntityAndPrincipalSid(entityClass, entityId, userId)))));
+      putEntryTemplateCacheElement(cache, element, generation);
+    }
+
+    //noinspection unchecked
+    return (Collection<AclEntryTemplate>) element.getObjectValue();
+  }
+
+  @Override
+  public Map<Long, Collection<AclEntryTemplate>> getEntryTemplateByDomainEntitiesAndUser(
+      Class<? extends Entity> entityClass,
+      Collection<Long> entityIds,
+      String userId
+  )
+  {
+    Ehcache cache = CacheManager.getInstance().getEhcache(ENTRY_TEMPLATE_BY_DOMAIN_ENTITY_AND_SID_CACHE_NAME);
+    Map<Long, Collection<AclEntryTemplate>> result = new HashMap<>();
+    Map<Long, Long> missingEntityIdsByDomainEntityId = new HashMap<>();
+    // a single query for all uncached domain entity ids rather than one per entity
+    final Map<Long, Long> domainEntityIds = getDomainEntityIds(entityClass, entityIds);
+    for (Long entityId : entityIds)
+    {
+      final Long domainEntityId = domainEntityIds.get(entityId);
+      Element element = (null == cache) ? null : cache.get(new AclEntryTemplateCacheKey(domainEntityId, userId));
+      if (null == element)
+        missingEntityIdsByDomainEntityId.put(domainEntityId, entityId);
+      else
+        //noinspection unchecked
+        result.put(entityId, (Collection<AclEntryTemplate>) element.getObjectValue());
+    }
+
+    if (missingEntityIdsByDomainEntityId.isEmpty())
+      return result;
+
+    final long generation = entryTemplateCacheGeneration.get();
+    Map<Long, List<AclEntryTemplate>> loaded = new HashMap<>();
+    for (AclEntryTemplate entryTemplate : entryTemplateDao.getByDomainEntitiesAndPrincipalSid(entityClass,
+        missingEntityIdsByDomainEntityId.values(), userId))
+      loaded.computeIfAbsent(entryTemplate.getDomainEntity().getId(), id -> new ArrayList<>()).add(entryTemplate);
+
+    missingEntityIdsByDomainEntityId.forEach((domainEntityId, entityId) -> {
+      Collection<AclEntryTemplate> entryTemplates =
+          Collections.unmodifiableList(loaded.getOrDefault(domainEntityId, new ArrayList<>()));
+      if (null != cache)
+        putEntryTemplateCacheElement(cache, new Element(new AclEntryTemplateCacheKey(domainEntityId, userId),
+            entryTemplates), generation);
+      result.put(entityId, entryTemplates);
+    });
+
+    return result;
+  }
+
+  /**
+   * @param generation template cache generation read before the value was loaded
+   */
+  private void putEntryTemplateCacheElement(
+      Ehcache cache,
+      Element element,
+      long generation
+  )
+  {
+    cache.put(element);
+    // the value might have been loaded before a modification got committed and its eviction was done
+    if (generation != entryTemplateCacheGeneration.get())
+      cache.remove(element.getObjectKey());
   }
 
   @Override
@@ -396,7 +1027,23 @@ public class AclServiceImpl
   @MainTransactional
   public Collection<AclEntry> getEntryByUser(String userId)
   {
-    return entryDao.getBySid(self.getPrincipalSid(userId).getId());
+    final Long sidId = self.getPrincipalSid(userId).getId();
+    // entries of the user may be anywhere in the tree, so any recent modification sends it to the primary
+    return readFromReplica(null, () -> entryDao.getBySid(sidId));
+  }
+
+  /**
+   * Runs a non-locking read on the read-only replica if it's allowed, see {@link AclReadReplicaRouter}.
+   *
+   * @param domainEntityId the domain entity the read depends on, null if it may depend on any of them
+   */
+  @Requires("action != null")
+  private <T> T readFromReplica(
+      Long domainEntityId,
+      Supplier<T> action
+  )
+  {
+    return (null == readReplicaRouter) ? action.get() : readReplicaRouter.read(domainEntityId, action);
   }
 
   @Override
@@ -410,22 +1057,74 @@ public class AclServiceImpl
 
   @Override
   @MainTransactional
-  public void createEntry(
-      AclEntryTemplate entryTemplate,
-      String userId
+  public List<AclEntryProjection> getEntryByUser(
+      String userId,
+      Long afterEntryId,
+      int pageSize
   )
-      throws
-      UserNotFoundException
   {
-    // lock user account to serialize permission give/revoke actions
-    // it's important to get caches recomputed correctly, see modification listeners which usually do that
+    return entryDao.getProjectionBySid(self.getPrincipalSid(userId).getId(), afterEntryId, pageSize);
+  }
+
+  @Override
+  public Stream<AclEntryProjection> streamEntryByUser(String userId)
+  {
+    return AclKeysetPageIterator.<AclEntryProjection, Long>stream(
+        (afterEntryId, pageSize) -> self.getEntryByUser(userId, afterEntryId, pageSize),
+        AclEntryProjection::getEntryId,
+        streamPageSize
+    );
+  }
+
+  @Override
+  @MainTransactional
+  public List<AclEntryProjection> getEntryByUserAndTemplate(
+      String userId,
+      Long entryTemplateId,
+      Long afterEntryId,
+      int pageSize
+  )
+  {
+    return entryDao.getProjectionBySidAndTemplate(self.getPrincipalSid(userId).getId(), entryTemplateId,
+        afterEntryId, pageSize);
+  }
+
+  @Override
+  public Stream<AclEntryProjection> streamEntryByUserAndTemplate(
+      String userId,
+      Long entryTemplateId
+  )
+  {
+    return AclKeysetPageIterator.<AclEntryProjection, Long>stream(
+        (afterEntryId, pageSize) -> self.getEntryByUserAndTemplate(userId, entryTemplateId, afterEntryId, pageSize),
+        AclEntryProjection::getEntryId,
+        streamPageSize
+    );
+  }
+
+  @Override
+  @MainTransactional
+  public void createEntry(
+      AclEntryTemplate entryTemplate,
+      String userId
+  )
+      throws
+      UserNotFoundException
+  {
+    // lock user account to serialize permission give/revoke actions
+    // it's important to get caches recomputed correctly, see modification listeners which usually do that
     if (null == userService.getUserForUpdate(userId))
       throw new UserNotFoundException(userId);
 
+    checkNotNull(entryTemplate.getDomainEntity());
+    checkNotNull(entryTemplate.getDomainEntity().getId());
+    // the template may be detached, e.g. cached, so only the id of its domain entity is taken from it
+    final AclDomainEntity domainEntity = self.getDomainEntity(entryTemplate.getDomainEntity().getId());
+
     AclEntryTemplate resultingEntryTemplate = entryTemplate;
     try
     {
-      for (AclModificationListener modificationListener : modificationListenerRegister.getListeners())
+      for (AclModificationListener modificationListener : getModificationListeners(domainEntity))
       {
         resultingEntryTemplate = modificationListener.beforeCreateEntry(resultingEntryTemplate, userId);
         if (null == resultingEntryTemplate)
@@ -445,7 +1144,8 @@ public class AclServiceImpl
     checkNotNull(resultingEntryTemplate.getGranting());
 
     AclEntry entry = new AclEntry();
-    entry.setDomainEntity(self.getDomainEntity(resultingEntryTemplate.getDomainEntity().getId()));
+    entry.setDomainEntity(domainEntity.getId().equals(resultingEntryTemplate.getDomainEntity().getId())
+        ? domainEntity : self.getDomainEntity(resultingEntryTemplate.getDomainEntity().getId()));
     entry.setSid(self.getPrincipalSid(userId));
     entry.setPermission(resultingEntryTemplate.getPermission());
     entry.setGranting(resultingEntryTemplate.getGranting());
@@ -475,6 +1175,22 @@ public class AclServiceImpl
     if (null == userService.getUserForUpdate(userId))
       throw new UserNotFoundException(userId);
 
+    createEntryOfLockedUser(entityClass, entityId, entryTemplate, userId);
+  }
+
+  @Requires({
+      "entityClass != null",
+      "entityId != null",
+      "entryTemplate != null",
+      "userId != null"
+  })
+  private void createEntryOfLockedUser(
+      Class<? extends Entity> entityClass,
+      Long entityId,
+      AclEntryTemplate entryTemplate,
+      String userId
+  )
+  {
     AclEntry entry = new AclEntry();
     entry.setDomainEntity(self.getDomainEntity(entityClass, entityId));
     entry.setSid(self.getPrincipalSid(userId));
@@ -485,6 +1201,57 @@ public class AclServiceImpl
     createEntry(entry);
   }
 
+  @Override
+  @MainTransactional
+  public void createGroupEntry(
+      Class<? extends Entity> entityClass,
+      Long entityId,
+      AclEntryTemplate entryTemplate,
+      String groupId
+  )
+  {
+    checkNotNull(entryTemplate.getId());
+    checkNotNull(entryTemplate.getPermission());
+    checkNotNull(entryTemplate.getPermission().getId());
+    checkNotNull(entryTemplate.getGranting());
+
+    // lock group SID to serialize permission give/revoke actions
+    final AclSid groupSid = self.getGroupSid(groupId);
+    sidDao.getBySidAndPrincipalForUpdate(groupId, false);
+
+    AclEntry entry = new AclEntry();
+    entry.setDomainEntity(self.getDomainEntity(entityClass, entityId));
+    entry.setSid(groupSid);
+    entry.setPermission(entryTemplate.getPermission());
+    entry.setGranting(entryTemplate.getGranting());
+    entry.setEntryTemplate(entryTemplate);
+
+    createEntry(entry);
+  }
+
+  @Override
+  @MainTransactional
+  public void deleteGroupEntry(
+      Class<? extends Entity> entityClass,
+      Long entityId,
+      Long entryTemplateId,
+      String groupId
+  )
+  {
+    // lock group SID to serialize permission give/revoke actions
+    final Long groupSidId = self.getGroupSid(groupId).getId();
+    sidDao.getBySidAndPrincipalForUpdate(groupId, false);
+
+    final List<AclEntry> entryList = getLiveEntries(
+        entryDao.getByDomainEntityAndSidAndTemplate(entityClass, entityId, groupSidId, entryTemplateId),
+        self.getDomainEntityId(entityClass, entityId), groupSidId, entryTemplateId);
+    if (entryList.isEmpty())
+      // someone did it for us, fine...
+      return;
+
+    deleteEntry(entryList.get(0));
+  }
+
   @Requires("entry != null")
   private void createEntry(AclEntry entry)
   {
@@ -505,6 +1272,7 @@ public class AclServiceImpl
     try
     {
       modificationContext.getModification(entry.getDomainEntity().getId()).createEntry(entry);
+      entryOperationLog.get().createEntry(entry);
       isFinished = true;
     }
     finally
@@ -532,7 +1300,12 @@ public class AclServiceImpl
 
     try
     {
-      for (AclModificationListener modificationListener : modificationListenerRegister.getListeners())
+      final AclEntryTemplate entryTemplate = self.getEntryTemplate(entryTemplateId);
+      // the template is cached, i.e. detached, so only the id of its domain entity is taken from it
+      final List<AclModificationListener> modificationListeners = (null == entryTemplate)
+          ? getModificationListeners((Long) null)
+          : getModificationListeners(self.getDomainEntity(entryTemplate.getDomainEntity().getId()));
+      for (AclModificationListener modificationListener : modificationListeners)
       {
         final boolean shouldContinue = modificationListener.beforeDeleteEntry(entryTemplateId, userId);
         if (!shouldContinue)
@@ -544,7 +1317,9 @@ public class AclServiceImpl
       throw new IllegalStateException(ex.getMessage(), ex);
     }
 
-    List<AclEntry> entryList = entryDao.getBySidAndTemplate(self.getPrincipalSid(userId).getId(), entryTemplateId);
+    final Long sidId = self.getPrincipalSid(userId).getId();
+    final List<AclEntry> entryList = getLiveEntries(entryDao.getBySidAndTemplate(sidId, entryTemplateId), null, sidId,
+        entryTemplateId);
     if (entryList.isEmpty())
       // someone did it for us, fine...
       return;
@@ -566,7 +1341,9 @@ public class AclServiceImpl
     if (null == userService.getUserForUpdate(userId))
       throw new UserNotFoundException(userId);
 
-    List<AclEntry> entryList = entryDao.getBySidAndTemplate(self.getPrincipalSid(userId).getId(), entryTemplateId);
+    final Long sidId = self.getPrincipalSid(userId).getId();
+    final List<AclEntry> entryList = getLiveEntries(entryDao.getBySidAndTemplate(sidId, entryTemplateId), null, sidId,
+        entryTemplateId);
     if (entryList.isEmpty())
       // someone did it for us, fine...
       return;
@@ -604,8 +1381,26 @@ public class AclServiceImpl
     if (null == userService.getUserForUpdate(userId))
       throw new UserNotFoundException(userId);
 
-    List<AclEntry> entryList = entryDao.getByDomainEntityAndSidAndTemplate(entityClass, entityId,
-        self.getPrincipalSid(userId).getId(), entryTemplateId);
+    deleteEntryOfLockedUser(entityClass, entityId, entryTemplateId, userId);
+  }
+
+  @Requires({
+      "entityClass != null",
+      "entityId != null",
+      "entryTemplateId != null",
+      "userId != null"
+  })
+  private void deleteEntryOfLockedUser(
+      Class<? extends Entity> entityClass,
+      Long entityId,
+      Long entryTemplateId,
+      String userId
+  )
+  {
+    final Long sidId = self.getPrincipalSid(userId).getId();
+    final List<AclEntry> entryList = getLiveEntries(
+        entryDao.getByDomainEntityAndSidAndTemplate(entityClass, entityId, sidId, entryTemplateId),
+        self.getDomainEntityId(entityClass, entityId), sidId, entryTemplateId);
     if (entryList.isEmpty())
       // someone did it for us, fine...
       return;
@@ -613,6 +1408,38 @@ public class AclServiceImpl
     deleteEntry(entryList.get(0));
   }
 
+  /**
+   * @param persistedEntries entries found in the DB
+   * @param domainEntityId   null to look at all domain entities
+   * @return entries existing as of the last operation of the current modification context, i.e. persisted ones
+   *         which aren't deleted within the context followed by ones created within it and not flushed yet
+   */
+  @Requires({
+      "persistedEntries != null",
+      "sidId != null",
+      "entryTemplateId != null"
+  })
+  @Ensures("result != null")
+  private List<AclEntry> getLiveEntries(
+      List<AclEntry> persistedEntries,
+      Long domainEntityId,
+      Long sidId,
+      Long entryTemplateId
+  )
+  {
+    AclEntryOperationLog log = entryOperationLog.get();
+    if (null == log)
+      return persistedEntries;
+
+    List<AclEntry> result = new ArrayList<>();
+    for (AclEntry entry : persistedEntries)
+      if (!log.isDeleted(entry))
+        result.add(entry);
+    result.addAll(log.getCreatedEntries(domainEntityId, sidId, entryTemplateId));
+
+    return result;
+  }
+
   @Requires("entry != null")
   private void deleteEntry(AclEntry entry)
   {
@@ -622,6 +1449,50 @@ public class AclServiceImpl
     try
     {
       modificationContext.getModification(entry.getDomainEntity().getId()).deleteEntry(entry);
+      entryOperationLog.get().deleteEntry(entry);
+      isFinished = true;
+    }
+    finally
+    {
+      if (!isFinished)
+        deleteModificationContext();
+    }
+    if (shouldFlushModificationContext)
+      flushModificationContext();
+  }
+
+  @Override
+  @MainTransactional
+  public void executeEntryOperations(
+      String userId,
+      List<AclEntryOperation> operations
+  )
+      throws
+      UserNotFoundException
+  {
+    // lock user account once for the whole batch
+    if (null == userService.getUserForUpdate(userId))
+      throw new UserNotFoundException(userId);
+
+    final boolean shouldFlushModificationContext = !isModificationContextCreated();
+    createModificationContext();
+    boolean isFinished = false;
+    try
+    {
+      for (AclEntryOperation operation : operations)
+        if (operation.isCreating())
+        {
+          checkNotNull(operation.getEntryTemplate().getId());
+          checkNotNull(operation.getEntryTemplate().getPermission());
+          checkNotNull(operation.getEntryTemplate().getPermission().getId());
+          checkNotNull(operation.getEntryTemplate().getGranting());
+
+          createEntryOfLockedUser(operation.getEntityClass(), operation.getEntityId(), operation.getEntryTemplate(),
+              userId);
+        }
+        else
+          deleteEntryOfLockedUser(operation.getEntityClass(), operation.getEntityId(), operation.getEntryTemplateId(),
+              userId);
       isFinished = true;
     }
     finally
@@ -633,6 +1504,17 @@ public class AclServiceImpl
       flushModificationContext();
   }
 
+  @Override
+  public CompletableFuture<Void> submitEntryOperation(
+      String userId,
+      AclEntryOperation operation
+  )
+  {
+    checkState(null != groupCommitter, "Group commit executor is not configured.");
+
+    return groupCommitter.submit(userId, operation);
+  }
+
   @Override
   public boolean isModificationContextCreated()
   {
@@ -647,6 +1529,7 @@ public class AclServiceImpl
     {
       result = new AclModificationContext();
       modificationContext.set(result);
+      entryOperationLog.set(new AclEntryOperationLog());
     }
 
     return result;
@@ -663,46 +1546,119 @@ public class AclServiceImpl
     try
     {
       mainDbHelper.flush();
-      final List<Long> modifiedDomainEntityIdList = new ArrayList<>();
+      final AclEntryOperationLog log = entryOperationLog.get();
+      // entries put into the context directly aren't in the log, they'd be silently dropped otherwise
       for (AclModification modification : context.getModifications())
+        for (AclEntry entry : Iterables.concat(modification.getEntriesToDelete(), modification.getEntriesToCreate()))
+          checkState(log.isLogged(entry), "Entry operations of domain entity %s have been made on the modification "
+              + "context directly rather than through the ACL service.", modification.getDomainEntityId());
+      final List<AclNetModification> netModifications = log.getNetModifications();
+      // listeners get to see what is actually written, not cancelled or duplicate operations
+      final AclModificationContext netContext = new AclModificationContext();
+      for (AclNetModification modification : netModifications)
+      {
+        AclModification netModification = netContext.getModification(modification.getDomainEntityId());
+        modification.getEntriesToDelete().forEach(netModification::deleteEntry);
+        modification.getEntriesToCreate().forEach(netModification::createEntry);
+      }
+      context.getEntryTemplatesToDelete().forEach(netContext::deleteEntryTemplate);
+      if ((hasPermissionCachePartitioned || null != effectiveEntryDao) && !netModifications.isEmpty())
+        // leaves must stay leaves and recomputed subtrees must keep their shape until commit, i.e. keep tree
+        // modifications out while letting other flushes in, taken before any domain entity lock like tree
+        // modifications do
+        if (null == domainEntityDao.getByClassAndIdForShare(
+            self.getDomainEntityClass(RootEntity.class).getClazz(), RootEntity.DEFAULT_ROOT_ENTITY_ID))
+          throw new AclDomainEntityNotFoundException(RootEntity.class, RootEntity.DEFAULT_ROOT_ENTITY_ID);
+
+      final List<Long> modifiedDomainEntityIdList = new ArrayList<>();
+      final Map<Long, Set<Long>> modifiedSidIdsByDomainEntityId = new LinkedHashMap<>();
+      final Map<Long, AclSid> modifiedSids = new HashMap<>();
+      // null stands for all classes
+      final Map<Long, Set<Long>> modifiedDomainEntityClassIdsBySidId = new HashMap<>();
+      final Set<Long> modifiedDomainEntityClassIds = new HashSet<>();
+      boolean isInnerDomainEntityModified = false;
+      // cancelling operations are dropped, so domain entities without net change are neither locked nor reported
+      for (AclNetModification modification : netModifications)
       {
         // lock entire ACL
         AclDomainEntity domainEntity = domainEntityDao.getByIdForUpdate(modification.getDomainEntityId());
         if (null == domainEntity)
           throw new AclDomainEntityNotFoundException(modification.getDomainEntityId());
 
+        final Set<Long> modifiedSidIds = new HashSet<>();
         for (AclEntry entry : modification.getEntriesToDelete())
+        {
           entryDao.delete(entry.getId());
+          modifiedSidIds.add(entry.getSid().getId());
+          modifiedSids.put(entry.getSid().getId(), entry.getSid());
+        }
 
         for (AclEntry entry : modification.getEntriesToCreate())
         {
           entry.setDomainEntity(domainEntity);
           entryDao.create(entry);
+          modifiedSidIds.add(entry.getSid().getId());
+          modifiedSids.put(entry.getSid().getId(), entry.getSid());
         }
 
+        // entries of a leaf affect permissions on the leaf only, i.e. the cache partition of its class,
+        // otherwise descendants of any class inherit them, children can't be added meanwhile due to the tree lock
+        final boolean isLeaf = isLeafDomainEntity(domainEntity.getId());
+        isInnerDomainEntityModified |= !isLeaf;
+        final Long affectedDomainEntityClassId = (hasPermissionCachePartitioned && isLeaf)
+            ? domainEntity.getDomainEntityClass().getId() : null;
+        for (Long sidId : modifiedSidIds)
+          modifiedDomainEntityClassIdsBySidId.computeIfAbsent(sidId, id -> new HashSet<>())
+              .add(affectedDomainEntityClassId);
+        modifiedDomainEntityClassIds.add(domainEntity.getDomainEntityClass().getId());
+
         modifiedDomainEntityIdList.add(domainEntity.getId());
+        modifiedSidIdsByDomainEntityId.put(domainEntity.getId(), modifiedSidIds);
       }
 
       mainDbHelper.flush();
-      context.getEntryTemplatesToDelete().forEach(entryTemplateDao::delete);
+      if (null != effectiveEntryDao)
+        // only grants of the SIDs whose entries were touched are changed, and only within the modified subtrees
+        modifiedSidIdsByDomainEntityId.forEach((domainEntityId, sidIds) -> {
+          if (!sidIds.isEmpty())
+            effectiveEntryDao.recomputeSubtree(domainEntityId, sidIds);
+        });
+
+      mainDbHelper.flush();
+      for (Long entryTemplateId : context.getEntryTemplatesToDelete())
+      {
+        AclEntryTemplate entryTemplate = entryTemplateDao.getById(entryTemplateId);
+        // report the owning domain entity as modified, so template caches get evicted here and on other nodes
+        if (null != entryTemplate)
+        {
+          if (!modifiedDomainEntityIdList.contains(entryTemplate.getDomainEntity().getId()))
+            modifiedDomainEntityIdList.add(entryTemplate.getDomainEntity().getId());
+          modifiedDomainEntityClassIds.add(entryTemplate.getDomainEntity().getDomainEntityClass().getId());
+        }
+        entryTemplateDao.delete(entryTemplateId);
+      }
 
       mainDbHelper.flush();
       try
       {
-        for (AclModificationListener modificationListener : modificationListenerRegister.getListeners())
-          modificationListener.afterFlushModificationContext(context);
+        for (AclModificationListener modificationListener : getModificationListeners(
+            isInnerDomainEntityModified ? null : modifiedDomainEntityClassIds))
+          modificationListener.afterFlushModificationContext(netContext);
       }
       catch (Exception ex)
       {
         throw new IllegalStateException(ex.getMessage(), ex);
       }
 
+      final Map<String, Set<Long>> modifiedDomainEntityClassIdsByUserId =
+          getDomainEntityClassIdsByUserId(modifiedSids.values(), modifiedDomainEntityClassIdsBySidId);
+      if (!modifiedDomainEntityClassIdsByUserId.isEmpty())
+        invalidateHasPermissionCachesAfterCommit(modifiedDomainEntityClassIdsByUserId);
+
       if (modifiedDomainEntityIdList.size() > 0)
-        mainDbHelper.afterCommit(() -> {
-          AclDomainEntityModificationMessagePayload messagePayload = new AclDomainEntityModificationMessagePayload();
-          messagePayload.setModifiedDomainEntityIdList(Longs.toArray(modifiedDomainEntityIdList));
-          domainEntityModificationMessageSender.send(messagePayload);
-        });
+        // fast deny filters of other users needn't learn about these domain entities
+        sendDomainEntityModificationMessage(Longs.toArray(modifiedDomainEntityIdList),
+            modifiedDomainEntityClassIdsByUserId.keySet().toArray(new String[0]));
     }
     finally
     {
@@ -710,10 +1666,114 @@ public class AclServiceImpl
     }
   }
 
+  /**
+   * @param domainEntityClassIdsBySidId cache partitions to invalidate per SID, null stands for all of them
+   * @return cache partitions to invalidate per user whose entries or groups' entries were touched
+   */
+  @Requires({
+      "modifiedSids != null",
+      "domainEntityClassIdsBySidId != null"
+  })
+  @Ensures("result != null")
+  private Map<String, Set<Long>> getDomainEntityClassIdsByUserId(
+      Collection<AclSid> modifiedSids,
+      Map<Long, Set<Long>> domainEntityClassIdsBySidId
+  )
+  {
+    final Map<String, Set<Long>> result = new HashMap<>();
+    for (AclSid sid : modifiedSids)
+    {
+      final Set<Long> domainEntityClassIds = domainEntityClassIdsBySidId.get(sid.getId());
+      if (sid.getIsPrincipal())
+        result.computeIfAbsent(sid.getSid(), id -> new HashSet<>()).addAll(domainEntityClassIds);
+      else if (null != sidMembershipDao)
+        for (String userId : sidMembershipDao.getMemberSids(sid.getId()))
+          result.computeIfAbsent(userId, id -> new HashSet<>()).addAll(domainEntityClassIds);
+    }
+
+    return result;
+  }
+
+  /**
+   * Only users whose entries or groups' entries were touched get their permission caches invalidated,
+   * which is safe since a value being loaded meanwhile isn't kept, see {@link AclHasPermissionCacheGenerations}.
+   *
+   * @param domainEntityClassIdsByUserId cache partitions to invalidate per user, a null class stands for all of them
+   */
+  @Requires("domainEntityClassIdsByUserId != null")
+  private void invalidateHasPermissionCachesAfterCommit(final Map<String, Set<Long>> domainEntityClassIdsByUserId)
+  {
+    mainDbHelper.afterCommit(() -> domainEntityClassIdsByUserId.forEach((userId, domainEntityClassIds) -> {
+      if (domainEntityClassIds.contains(null))
+        self.invalidateHasPermissionCache(userId);
+      else
+        for (Long domainEntityClassId : domainEntityClassIds)
+          self.invalidateHasPermissionCache(userId, domainEntityClassId);
+    }));
+  }
+
+  /**
+   * @param domainEntityClassId class of the affected domain entity, null if it's unknown
+   * @return listeners interested in the class, all of them if the class is unknown
+   */
+  @Ensures("result != null")
+  private List<AclModificationListener> getModificationListeners(Long domainEntityClassId)
+  {
+    return getModificationListeners((null == domainEntityClassId) ? null : Collections.singleton(domainEntityClassId));
+  }
+
+  /**
+   * @return listeners interested in the class of the domain entity if it's a leaf, all of them otherwise since
+   *         descendants of any class are affected by modifications of an inner domain entity
+   */
+  @Requires("domainEntity != null")
+  @Ensures("result != null")
+  private List<AclModificationListener> getModificationListeners(AclDomainEntity domainEntity)
+  {
+    return getModificationListeners(isLeafDomainEntity(domainEntity.getId())
+        ? domainEntity.getDomainEntityClass().getId() : null);
+  }
+
+  private boolean isLeafDomainEntity(Long domainEntityId)
+  {
+    return domainEntityDao.getIdsByParentIds(Collections.singletonList(domainEntityId)).isEmpty();
+  }
+
+  /**
+   * @param domainEntityClassIds classes of the affected domain entities, null if they are unknown
+   * @return unscoped listeners and scoped ones interested in any of the classes or their parent classes
+   */
+  @Ensures("result != null")
+  private List<AclModificationListener> getModificationListeners(Collection<Long> domainEntityClassIds)
+  {
+    List<AclModificationListener> result = new ArrayList<>();
+    for (AclModificationListener modificationListener : modificationListenerRegister.getListeners())
+      if (null == domainEntityClassIds || !(modificationListener instanceof AclScopedModificationListener)
+          || isInterested((AclScopedModificationListener) modificationListener, domainEntityClassIds))
+        result.add(modificationListener);
+
+    return result;
+  }
+
+  private boolean isInterested(
+      AclScopedModificationListener modificationListener,
+      Collection<Long> domainEntityClassIds
+  )
+  {
+    for (Long interestingDomainEntityClassId : modificationListener.getDomainEntityClassIds())
+      for (Long domainEntityClassId : domainEntityClassIds)
+        if (interestingDomainEntityClassId.equals(domainEntityClassId)
+            || self.isChildDomainEntityClass(interestingDomainEntityClassId, domainEntityClassId))
+          return true;
+
+    return false;
+  }
+
   @Override
   public void deleteModificationContext()
   {
     modificationContext.remove();
+    entryOperationLog.remove();
   }
 
   @Override
@@ -735,21 +1795,151 @@ public class AclServiceImpl
       String userId
   )
   {
-    AclHasPermissionCacheKey key =
-        new AclHasPermissionCacheKey(self.getDomainEntityId(entityClass, entityId), permissionMask.getMask());
-    Ehcache cache = self.getHasPermissionCache(userId);
+    final AclPermissionCheckTracer tracer = permissionCheckTracer;
+    if (null == tracer)
+      return hasPermission(entityClass, entityId, permissionMask, userId, null);
+
+    final AclPermissionCheckTracer.Probe probe = tracer.startProbe();
+    final boolean result = hasPermission(entityClass, entityId, permissionMask, userId, probe);
+    final long totalNanos = tracer.stopProbe(probe);
+    if (totalNanos >= 0)
+      tracer.record(new AclPermissionCheckTrace(System.currentTimeMillis(), userId, probe.domainEntityId,
+          permissionMask.getMask(), probe.sampled, probe.cacheHit, probe.domainEntityIdNanos,
+          probe.hasPermissionNanos, totalNanos, result, probe.decidingPath, probe.decidingDomainEntityId));
+
+    return result;
+  }
+
+  @Requires({
+      "entityClass != null",
+      "entityId != null",
+      "permissionMask != null",
+      "userId != null"
+  })
+  private boolean hasPermission(
+      Class<? extends Entity> entityClass,
+      Long entityId,
+      PermissionMask permissionMask,
+      String userId,
+      AclPermissionCheckTracer.Probe probe
+  )
+  {
+    long startedAt = (null == probe) ? 0 : System.nanoTime();
+    final Long domainEntityId = self.getDomainEntityId(entityClass, entityId);
+    if (null != probe)
+    {
+      probe.domainEntityId = domainEntityId;
+      probe.domainEntityIdNanos = System.nanoTime() - startedAt;
+    }
+
+    AclHasPermissionCacheKey key = new AclHasPermissionCacheKey(domainEntityId, permissionMask.getMask());
+    Ehcache cache = hasPermissionCachePartitioned
+        ? self.getHasPermissionCache(userId, self.getDomainEntityClass(entityClass).getId())
+        : self.getHasPermissionCache(userId);
     Element element = cache.get(key);
+    final boolean isCacheHit = null != element;
     if (null == element)
     {
-      element = new Element(key, entryDao.hasPermission(entityClass, entityId, permissionMask, userId));
+      if (null != hasPermissionCachePreloader)
+        hasPermissionCachePreloader.recordMiss(self.getDomainEntityClass(entityClass).getId(), permissionMask);
+
+      final long generation = hasPermissionCacheGenerations.get(userId);
+      startedAt = (null == probe) ? 0 : System.nanoTime();
+      element = new Element(key,
+          loadHasPermission(entityClass, entityId, domainEntityId, permissionMask, userId, probe));
+      if (null != probe)
+        probe.hasPermissionNanos = System.nanoTime() - startedAt;
+
       cache.acquireWriteLockOnKey(key);
       cache.put(element);
       cache.releaseWriteLockOnKey(key);
+      // the value might have been loaded before a modification got committed and its invalidation was done
+      if (generation != hasPermissionCacheGenerations.get(userId))
+        cache.remove(key);
+    }
+
+    if (null != probe)
+    {
+      probe.cacheHit = isCacheHit;
+      if (isCacheHit)
+        probe.decidingPath = AclPermissionCheckTrace.DecidingPath.CACHE;
     }
 
+    if (null != hasPermissionCacheBudget)
+      hasPermissionCacheBudget.recordAccess(cache.getName(), isCacheHit);
+
     return (Boolean) element.getObjectValue();
   }
 
+  @Requires({
+      "entityClass != null",
+      "entityId != null",
+      "domainEntityId != null",
+      "permissionMask != null",
+      "userId != null"
+  })
+  private boolean loadHasPermission(
+      Class<? extends Entity> entityClass,
+      Long entityId,
+      Long domainEntityId,
+      PermissionMask permissionMask,
+      String userId,
+      AclPermissionCheckTracer.Probe probe
+  )
+  {
+    AclSnapshot currentSnapshot = getSnapshot();
+    if (null != currentSnapshot)
+    {
+      final Long grantingDomainEntityId =
+          currentSnapshot.getGrantingDomainEntityId(domainEntityId, permissionMask.getMask(), userId);
+      final boolean result = null != grantingDomainEntityId && AclSnapshot.NOT_GRANTED != grantingDomainEntityId;
+      // the snapshot knows nothing about group membership, so its denial is final only without group SIDs
+      if (null != grantingDomainEntityId && (result || null == sidMembershipDao))
+      {
+        if (null != probe)
+        {
+          probe.decidingPath = AclPermissionCheckTrace.DecidingPath.SNAPSHOT;
+          probe.decidingDomainEntityId = result ? grantingDomainEntityId : null;
+        }
+        return result;
+      }
+    }
+
+    // SIDs are resolved on the primary, getPrincipalSid may need to create one, any statement run here binds
+    // the rest of the check to the primary as well
+    final List<Long> sidIds = getSidIds(userId);
+
+    // filters are loaded from the primary, a lagging replica could miss grants they are never told about again
+    if (null != fastDenyFilter && fastDenyFilter.isDenied(userId, domainEntityId,
+        () -> entryDao.getGrantingDomainEntityIds(sidIds),
+        () -> domainEntityClosureDao.getAncestorIds(domainEntityId)))
+    {
+      if (null != probe)
+        probe.decidingPath = AclPermissionCheckTrace.DecidingPath.FAST_DENY_FILTER;
+      return false;
+    }
+
+    // inherited entries make the result depend on ancestors as well, hence any recent modification counts
+    if (null != effectiveEntryDao)
+    {
+      if (null == probe || !probe.sampled)
+        // a single indexed point lookup instead of evaluating inherited entries
+        return readFromReplica(null, () -> effectiveEntryDao.hasPermission(sidIds, domainEntityId, permissionMask));
+
+      // sampled checks are explained, the lookup telling the granting domain entity replaces the point lookup
+      probe.decidingPath = AclPermissionCheckTrace.DecidingPath.EFFECTIVE_ENTRY_STORE;
+      probe.decidingDomainEntityId = readFromReplica(null,
+          () -> effectiveEntryDao.getGrantingDomainEntityId(sidIds, domainEntityId, permissionMask));
+      return null != probe.decidingDomainEntityId;
+    }
+
+    if (null != probe)
+      probe.decidingPath = AclPermissionCheckTrace.DecidingPath.ENTRY_DAO;
+    final List<Long> groupSidIds = sidIds.subList(1, sidIds.size());
+    return readFromReplica(null, () -> entryDao.hasPermission(entityClass, entityId, permissionMask, userId)
+        || !groupSidIds.isEmpty() && entryDao.hasPermission(entityClass, entityId, permissionMask, groupSidIds));
+  }
+
   @Override
   public void checkPermission(
       Class<? extends Entity> entityClass,
@@ -776,6 +1966,67 @@ public class AclServiceImpl
       throw new NoPermissionException(entityClass, entityId, permissionMask, userId);
   }
 
+  @Override
+  @MainTransactional
+  public List<Long> getAccessibleEntityIds(
+      Class<? extends Entity> entityClass,
+      PermissionMask permissionMask,
+      String userId,
+      Long afterEntityId,
+      int pageSize
+  )
+  {
+    checkState(null != effectiveEntryDao, "Effective entry store is required to query accessible entities.");
+
+    return effectiveEntryDao.getEntityIds(getSidIds(userId),
+        self.getDomainEntityClass(entityClass).getId(), permissionMask, afterEntityId, pageSize);
+  }
+
+  @Override
+  public LongStream streamAccessibleEntityIds(
+      Class<? extends Entity> entityClass,
+      PermissionMask permissionMask,
+      String userId
+  )
+  {
+    // every page is loaded in its own transaction, nothing is held open while the stream is consumed
+    return AclKeysetPageIterator.<Long, Long>stream(
+        (afterEntityId, pageSize) -> self.getAccessibleEntityIds(entityClass, permissionMask, userId, afterEntityId, pageSize),
+        entityId -> entityId,
+        streamPageSize
+    ).mapToLong(Long::longValue);
+  }
+
+  @Override
+  @MainTransactional
+  public List<String> getPrincipalsWithPermission(
+      Class<? extends Entity> entityClass,
+      Long entityId,
+      PermissionMask permissionMask,
+      String afterUserId,
+      int pageSize
+  )
+  {
+    checkState(null != effectiveEntryDao, "Effective entry store is required to query principals with permission.");
+
+    return effectiveEntryDao.getPrincipalSids(self.getDomainEntityId(entityClass, entityId), permissionMask,
+        afterUserId, pageSize);
+  }
+
+  @Override
+  public Stream<String> streamPrincipalsWithPermission(
+      Class<? extends Entity> entityClass,
+      Long entityId,
+      PermissionMask permissionMask
+  )
+  {
+    return AclKeysetPageIterator.<String, String>stream(
+        (afterUserId, pageSize) -> self.getPrincipalsWithPermission(entityClass, entityId, permissionMask, afterUserId, pageSize),
+        userId -> userId,
+        streamPageSize
+    );
+  }
+
   @Ensures("result != null")
   private String getHasPermissionCacheNamePrefix()
   {
@@ -792,32 +2043,303 @@ public class AclServiceImpl
   @Override
   public String getHasPermissionCacheName(String userId)
   {
+    checkState(!hasPermissionCachePartitioned, "Permission caches are partitioned by domain entity class.");
+
     return getHasPermissionCacheNamePrefix() + "_" + userId;
   }
 
+  @Override
+  public String getHasPermissionCacheName(
+      String userId,
+      Long domainEntityClassId
+  )
+  {
+    // class id goes first, so that the name of a partition is never a prefix of another one
+    return getHasPermissionCacheNamePrefix() + "_" + domainEntityClassId + "_" + userId;
+  }
+
   @Override
   public Ehcache getHasPermissionCache(String userId)
   {
-    Ehcache result = hasPermissionCaches.get(userId);
+    // returning an unpartitioned cache nobody reads from or invalidates would silently serve stale values
+    checkState(!hasPermissionCachePartitioned, "Permission caches are partitioned by domain entity class.");
+
+    return getHasPermissionCache(self.getHasPermissionCacheName(userId), userId, null);
+  }
+
+  @Override
+  public Ehcache getHasPermissionCache(
+      String userId,
+      Long domainEntityClassId
+  )
+  {
+    if (!hasPermissionCachePartitioned)
+      return self.getHasPermissionCache(userId);
+
+    return getHasPermissionCache(self.getHasPermissionCacheName(userId, domainEntityClassId), userId,
+        domainEntityClassId);
+  }
+
+  @Requires({
+      "cacheName != null",
+      "userId != null"
+  })
+  @Ensures("result != null")
+  private Ehcache getHasPermissionCache(
+      String cacheName,
+      String userId,
+      Long domainEntityClassId
+  )
+  {
+    Ehcache result = hasPermissionCaches.get(cacheName);
     if (null == result)
       synchronized (this)
       {
-        result = hasPermissionCaches.get(userId);
+        result = hasPermissionCaches.get(cacheName);
         if (null == result)
         {
-          hasPermissionCacheTemplateFactoryBean.setCacheName(self.getHasPermissionCacheName(userId));
+          hasPermissionCacheTemplateFactoryBean.setCacheName(cacheName);
           result = hasPermissionCacheTemplateFactoryBean.create();
           result.removeAll();
-          hasPermissionCaches.put(userId, result);
+          if (null != hasPermissionCacheBudget)
+            result.getCacheConfiguration().setMaxEntriesLocalHeap(
+                hasPermissionCacheBudget.getInitialEntries(hasPermissionCaches.size()));
+          hasPermissionCaches.put(cacheName, result);
+
+          // only the first cache of a user is preloaded, partitions created later are filled on demand
+          boolean isFirstUserCache = true;
+          if (null != domainEntityClassId)
+          {
+            isFirstUserCache = !hasPermissionCachePartitions.containsKey(userId);
+            hasPermissionCachePartitions.computeIfAbsent(userId, id -> new HashSet<>()).add(domainEntityClassId);
+          }
+          if (isFirstUserCache && null != hasPermissionCachePreloader)
+            hasPermissionCachePreloader.schedule(userId, self::preloadHasPermissionCache);
         }
       }
 
     return result;
   }
 
+  @Ensures("result != null")
+  private synchronized Map<String, Ehcache> getHasPermissionCaches()
+  {
+    return new HashMap<>(hasPermissionCaches);
+  }
+
+  /**
+   * Idle caches are forgotten right away, so that new checks create fresh ones, but disposed only by the next run,
+   * as checks started before might still be using them.
+   */
+  private void rebalanceHasPermissionCaches()
+  {
+    synchronized (this)
+    {
+      for (String cacheName : retiredHasPermissionCacheNames)
+        // the user might have got a cache of the same name again meanwhile
+        if (!hasPermissionCaches.containsKey(cacheName))
+          CacheManager.getInstance().removeCache(cacheName);
+    }
+    retiredHasPermissionCacheNames.clear();
+
+    final Set<String> idleCacheNames = hasPermissionCacheBudget.rebalance(getHasPermissionCaches());
+    if (idleCacheNames.isEmpty())
+      return;
+
+    synchronized (this)
+    {
+      for (String cacheName : idleCacheNames)
+      {
+        Ehcache cache = hasPermissionCaches.remove(cacheName);
+        if (null != cache)
+          // invalidations don't reach forgotten caches, so nothing may be read from them any more
+          cache.removeAll();
+      }
+      hasPermissionCachePartitions.forEach((userId, domainEntityClassIds) -> domainEntityClassIds.removeIf(
+          domainEntityClassId -> idleCacheNames.contains(self.getHasPermissionCacheName(userId, domainEntityClassId))));
+      hasPermissionCachePartitions.values().removeIf(Set::isEmpty);
+    }
+    retiredHasPermissionCacheNames.addAll(idleCacheNames);
+  }
+
+  /**
+   * @return null if the cache hasn't been created yet, unlike {@link #getHasPermissionCache(String, String, Long)}
+   */
+  @Requires("cacheName != null")
+  private synchronized Ehcache findHasPermissionCache(String cacheName)
+  {
+    return hasPermissionCaches.get(cacheName);
+  }
+
+  @Requires("userId != null")
+  @Ensures("result != null")
+  private synchronized Set<Long> getHasPermissionCachePartitions(String userId)
+  {
+    Set<Long> result = hasPermissionCachePartitions.get(userId);
+    return (null == result) ? Collections.emptySet() : new HashSet<>(result);
+  }
+
   @Override
   public void invalidateHasPermissionCache()
   {
+    hasPermissionCacheGenerations.bumpAll();
     CacheManager.getInstance().clearAllStartingWith(getHasPermissionCacheNamePrefix());
+    if (null != fastDenyFilter)
+      fastDenyFilter.invalidate();
+  }
+
+  @Override
+  public void invalidateHasPermissionCache(String userId)
+  {
+    hasPermissionCacheGenerations.bump(userId);
+    // users without a cache have nothing cached, there is no point in creating one only to empty it
+    if (hasPermissionCachePartitioned)
+      for (Long domainEntityClassId : getHasPermissionCachePartitions(userId))
+        removeAll(findHasPermissionCache(self.getHasPermissionCacheName(userId, domainEntityClassId)));
+    else
+      removeAll(findHasPermissionCache(self.getHasPermissionCacheName(userId)));
+    if (null != fastDenyFilter)
+      fastDenyFilter.invalidate(userId);
+  }
+
+  @Override
+  public void invalidateHasPermissionCache(
+      String userId,
+      Long domainEntityClassId
+  )
+  {
+    if (!hasPermissionCachePartitioned)
+    {
+      self.invalidateHasPermissionCache(userId);
+      return;
+    }
+
+    // SIDs of the user are the same, so the fast deny filter is kept
+    hasPermissionCacheGenerations.bump(userId);
+    removeAll(findHasPermissionCache(self.getHasPermissionCacheName(userId, domainEntityClassId)));
+  }
+
+  private static void removeAll(Ehcache cache)
+  {
+    if (null != cache)
+      cache.removeAll();
+  }
+
+  @Override
+  @MainTransactional
+  public void preloadHasPermissionCache(String userId)
+  {
+    checkState(null != hasPermissionCachePreloader, "Permission cache preloader is not configured.");
+
+    final long generation = hasPermissionCacheGenerations.get(userId);
+    final List<Long> sidIds = getSidIds(userId);
+    final int limit = hasPermissionCachePreloader.getMaxEntriesPerClassMask();
+    Map<Ehcache, List<AclHasPermissionCacheKey>> preloadedKeys = new HashMap<>();
+    for (AclHasPermissionCachePreloader.ClassMask classMask : hasPermissionCachePreloader.getHotClassMasks())
+    {
+      Ehcache cache = self.getHasPermissionCache(userId, classMask.domainEntityClassId);
+      // only grants can be preloaded, denials would need every domain entity of the class
+      List<Long> domainEntityIds = readFromReplica(null, () -> effectiveEntryDao.getDomainEntityIds(sidIds,
+          classMask.domainEntityClassId, classMask.permissionMask, limit));
+      for (Long domainEntityId : domainEntityIds)
+      {
+        AclHasPermissionCacheKey key = new AclHasPermissionCacheKey(domainEntityId, classMask.permissionMask.getMask());
+        // a value loaded on demand in the meantime is at least as fresh
+        if (null == cache.putIfAbsent(new Element(key, Boolean.TRUE)))
+          preloadedKeys.computeIfAbsent(cache, c -> new ArrayList<>()).add(key);
+      }
+    }
+
+    if (generation != hasPermissionCacheGenerations.get(userId))
+      preloadedKeys.forEach(Ehcache::removeAll);
+  }
+
+  @Override
+  public List<AclPermissionCheckTrace> getPermissionCheckTraces()
+  {
+    return (null == permissionCheckTracer) ? Collections.emptyList() : permissionCheckTracer.getTraces();
+  }
+
+  @Override
+  @MainTransactional
+  public void exportSnapshot(File file)
+      throws
+      IOException
+  {
+    // a single transaction for a consistent view, but keyset pages of read-only rows rather than whole tables,
+    // the domain entity tree and entries are by far the largest parts
+    AclSnapshot.write(file, sidDao.getAll(), domainEntityClassDao.getAll(),
+        AclKeysetPageIterator.<AclDomainEntity, Long>stream(
+            (afterDomainEntityId, pageSize) -> domainEntityDao.getPageReadOnly(afterDomainEntityId, pageSize),
+            AclDomainEntity::getId,
+            streamPageSize
+        ),
+        AclKeysetPageIterator.<AclEntry, Long>stream(
+            (afterEntryId, pageSize) -> entryDao.getGrantingPageReadOnly(afterEntryId, pageSize),
+            AclEntry::getId,
+            streamPageSize
+        ));
+  }
+
+  @Override
+  public void importSnapshot(File file)
+      throws
+      IOException
+  {
+    final long retiresAt = startedAt + snapshotWarmUpMillis;
+    checkState(System.currentTimeMillis() < retiresAt, "ACL snapshot can only be imported while warming up.");
+
+    AclSnapshot result = AclSnapshot.open(file);
+    // modifications committed between export and start of the node are known only if they are replayed
+    checkState(result.getCreatedAt() >= startedAt - snapshotMessageReplayMillis,
+        "ACL snapshot created at %s is older than modification messages replayed since %s.", result.getCreatedAt(),
+        startedAt - snapshotMessageReplayMillis);
+
+    synchronized (pendingStaleDomainEntityIds)
+    {
+      result.markStale(Longs.toArray(pendingStaleDomainEntityIds));
+      pendingStaleDomainEntityIds.clear();
+      snapshotRetiresAt = retiresAt;
+      snapshot = result;
+    }
+  }
+
+  /**
+   * @return null if no snapshot has been imported or it's retired, its stale domain entities are dropped with it
+   */
+  private AclSnapshot getSnapshot()
+  {
+    AclSnapshot result = snapshot;
+    if (null != result && System.currentTimeMillis() >= snapshotRetiresAt)
+    {
+      snapshot = null;
+      return null;
+    }
+
+    return result;
+  }
+
+  @Requires("domainEntityIds != null")
+  private void markSnapshotStale(long[] domainEntityIds)
+  {
+    AclSnapshot currentSnapshot = getSnapshot();
+    if (null != currentSnapshot)
+    {
+      currentSnapshot.markStale(domainEntityIds);
+      return;
+    }
+
+    synchronized (pendingStaleDomainEntityIds)
+    {
+      // imported meanwhile
+      currentSnapshot = getSnapshot();
+      if (null != currentSnapshot)
+        currentSnapshot.markStale(domainEntityIds);
+      else if (System.currentTimeMillis() < startedAt + snapshotWarmUpMillis)
+        pendingStaleDomainEntityIds.addAll(Longs.asList(domainEntityIds));
+      else
+        // no snapshot can be imported any more
+        pendingStaleDomainEntityIds.clear();
+    }
   }
 }
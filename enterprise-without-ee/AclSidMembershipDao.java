@@ -0,0 +1,50 @@
+package com.nsn.acl.core;
+
+import com.google.java.contract.Ensures;
+import com.google.java.contract.Requires;
+
+import java.util.List;
+
+/**
+ * Membership of principal SIDs (users) in group (non-principal) SIDs.
+ */
+public interface AclSidMembershipDao
+{
+  @Requires("principalSidId != null")
+  @Ensures("result != null")
+  List<Long> getGroupSidIds(Long principalSidId);
+
+  /**
+   * @return principal SIDs (i.e. user ids) of the group members
+   */
+  @Requires("groupSidId != null")
+  @Ensures("result != null")
+  List<String> getMemberSids(Long groupSidId);
+
+  @Requires({
+      "groupSidId != null",
+      "principalSidId != null"
+  })
+  boolean exists(
+      Long groupSidId,
+      Long principalSidId
+  );
+
+  @Requires({
+      "groupSidId != null",
+      "principalSidId != null"
+  })
+  void create(
+      Long groupSidId,
+      Long principalSidId
+  );
+
+  @Requires({
+      "groupSidId != null",
+      "principalSidId != null"
+  })
+  void delete(
+      Long groupSidId,
+      Long principalSidId
+  );
+}
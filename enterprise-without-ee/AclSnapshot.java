@@ -0,0 +1,457 @@
+package com.nsn.acl.core.impl;
+
+import com.google.java.contract.Requires;
+import com.nsn.acl.core.AclDomainEntity;
+import com.nsn.acl.core.AclDomainEntityClass;
+import com.nsn.acl.core.AclEntry;
+import com.nsn.acl.core.AclSid;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Read-only, memory-mapped copy of the ACL (SIDs, domain entity classes, domain entity tree and granting entries)
+ * used to serve lookups of a freshly started node until its caches are warmed up from the live DB.
+ * <p>
+ * Layout (big-endian): header, variable-length SID and class sections, then fixed-width sections which are
+ * binary searched in place: domain entities sorted by id, index of domain entities sorted by (class id, entity id)
+ * and entries sorted by (domain entity id, sid id).
+ * <p>
+ * Domain entities reported as modified or deleted after the snapshot was taken are stale, any lookup which
+ * touches them answers "unknown" (null) so that the caller falls back to the DB.
+ * <p>
+ * A snapshot is mapped as a single buffer, so it can't exceed {@link Integer#MAX_VALUE} bytes.
+ */
+public class AclSnapshot
+{
+  private static final int MAGIC = 0x41434C53; // "ACLS"
+  private static final int VERSION = 1;
+  private static final long NO_PARENT = -1L;
+  static final long NOT_GRANTED = -1L;
+
+  private static final int DOMAIN_ENTITY_RECORD_SIZE = 8 + 8 + 8 + 8 + 1;
+  private static final int DOMAIN_ENTITY_INDEX_RECORD_SIZE = 4;
+  private static final int ENTRY_RECORD_SIZE = 8 + 8 + 8;
+
+  private final MappedByteBuffer buffer;
+  private final long createdAt;
+  private final Map<String, Long> principalSidIds;
+  private final Map<String, Long> domainEntityClassIds;
+  // offsets fit into int, since the whole snapshot does, see open
+  private final int domainEntityCount;
+  private final int domainEntityOffset;
+  private final int domainEntityIndexOffset;
+  private final int entryCount;
+  private final int entryOffset;
+  private final Set<Long> staleDomainEntityIds = ConcurrentHashMap.newKeySet();
+
+  private AclSnapshot(MappedByteBuffer buffer)
+  {
+    this.buffer = buffer;
+
+    if (MAGIC != buffer.getInt())
+      throw new IllegalStateException("Not an ACL snapshot.");
+    final int version = buffer.getInt();
+    if (VERSION != version)
+      throw new IllegalStateException("Unsupported ACL snapshot version " + version + ", expected " + VERSION + ".");
+    createdAt = buffer.getLong();
+
+    final int sidCount = buffer.getInt();
+    final int domainEntityClassCount = buffer.getInt();
+    domainEntityCount = buffer.getInt();
+    entryCount = buffer.getInt();
+
+    principalSidIds = new HashMap<>(sidCount * 2);
+    for (int i = 0; i < sidCount; i++)
+    {
+      final long id = buffer.getLong();
+      final boolean principal = 0 != buffer.get();
+      final String sid = readString(buffer);
+      if (principal)
+        principalSidIds.put(sid, id);
+    }
+
+    domainEntityClassIds = new HashMap<>(domainEntityClassCount * 2);
+    for (int i = 0; i < domainEntityClassCount; i++)
+    {
+      final long id = buffer.getLong();
+      domainEntityClassIds.put(readString(buffer), id);
+    }
+
+    domainEntityOffset = buffer.position();
+    // computed in long, counts of a corrupt header must not wrap around into plausible offsets
+    final long size = (long) domainEntityOffset + (long) domainEntityCount * DOMAIN_ENTITY_RECORD_SIZE
+        + (long) domainEntityCount * DOMAIN_ENTITY_INDEX_RECORD_SIZE + (long) entryCount * ENTRY_RECORD_SIZE;
+    if (domainEntityCount < 0 || entryCount < 0 || buffer.limit() != size)
+      throw new IllegalStateException("Truncated ACL snapshot.");
+    domainEntityIndexOffset = domainEntityOffset + domainEntityCount * DOMAIN_ENTITY_RECORD_SIZE;
+    entryOffset = domainEntityIndexOffset + domainEntityCount * DOMAIN_ENTITY_INDEX_RECORD_SIZE;
+  }
+
+  @Requires("file != null")
+  public static AclSnapshot open(File file)
+      throws
+      IOException
+  {
+    try (FileChannel channel = FileChannel.open(file.toPath()))
+    {
+      if (channel.size() > Integer.MAX_VALUE)
+        throw new IllegalStateException("ACL snapshot of " + channel.size() + " bytes can't be mapped.");
+      // the mapping stays valid after the channel is closed
+      return new AclSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+  }
+
+  /**
+   * Domain entities and entries are consumed one by one and kept as primitive records only, so they may be
+   * streamed page by page rather than loaded at once.
+   *
+   * @param domainEntities domain entities in ascending id order
+   * @param entries        entries in any order, only granting ones are written
+   * @throws IllegalStateException if the snapshot would exceed {@link Integer#MAX_VALUE} bytes, nothing is written
+   *                               then
+   */
+  @Requires({
+      "file != null",
+      "sids != null",
+      "domainEntityClasses != null",
+      "domainEntities != null",
+      "entries != null"
+  })
+  public static void write(
+      File file,
+      Collection<AclSid> sids,
+      Collection<AclDomainEntityClass> domainEntityClasses,
+      Stream<AclDomainEntity> domainEntities,
+      Stream<AclEntry> entries
+  )
+      throws
+      IOException
+  {
+    final Records domainEntityRecords = new Records(5);
+    domainEntities.forEach(domainEntity -> {
+      checkArgument(0 == domainEntityRecords.size()
+              || domainEntityRecords.get(domainEntityRecords.size() - 1, 0) < domainEntity.getId(),
+          "Domain entities are not in ascending id order.");
+      domainEntityRecords.add(domainEntity.getId(), domainEntity.getDomainEntityClass().getId(),
+          domainEntity.getEntityId(), (null == domainEntity.getParent()) ? NO_PARENT : domainEntity.getParent().getId(),
+          domainEntity.getEntriesInheriting() ? 1 : 0);
+    });
+    final Records entryRecords = new Records(3);
+    entries.forEach(entry -> {
+      if (entry.getGranting())
+        entryRecords.add(entry.getDomainEntity().getId(), entry.getSid().getId(), entry.getPermission().getMask());
+    });
+
+    long size = 4 + 4 + 8 + 4 * 4;
+    for (AclSid sid : sids)
+      size += 8 + 1 + 4 + sid.getSid().getBytes(StandardCharsets.UTF_8).length;
+    for (AclDomainEntityClass domainEntityClass : domainEntityClasses)
+      size += 8 + 4 + domainEntityClass.getClazz().getBytes(StandardCharsets.UTF_8).length;
+    size += (long) domainEntityRecords.size() * (DOMAIN_ENTITY_RECORD_SIZE + DOMAIN_ENTITY_INDEX_RECORD_SIZE)
+        + (long) entryRecords.size() * ENTRY_RECORD_SIZE;
+    if (size > Integer.MAX_VALUE)
+      throw new IllegalStateException("ACL snapshot of " + size + " bytes can't be mapped.");
+
+    Integer[] domainEntityIndex = new Integer[domainEntityRecords.size()];
+    for (int i = 0; i < domainEntityIndex.length; i++)
+      domainEntityIndex[i] = i;
+    Arrays.sort(domainEntityIndex, Comparator
+        .comparingLong((Integer i) -> domainEntityRecords.get(i, 1))
+        .thenComparingLong(i -> domainEntityRecords.get(i, 2)));
+
+    Integer[] entryOrder = new Integer[entryRecords.size()];
+    for (int i = 0; i < entryOrder.length; i++)
+      entryOrder[i] = i;
+    Arrays.sort(entryOrder, Comparator
+        .comparingLong((Integer i) -> entryRecords.get(i, 0))
+        .thenComparingLong(i -> entryRecords.get(i, 1)));
+
+    // write next to the target and rename, readers never see a partially written snapshot
+    File tmpFile = new File(file.getPath() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile))))
+    {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(System.currentTimeMillis());
+      out.writeInt(sids.size());
+      out.writeInt(domainEntityClasses.size());
+      out.writeInt(domainEntityRecords.size());
+      out.writeInt(entryRecords.size());
+
+      for (AclSid sid : sids)
+      {
+        out.writeLong(sid.getId());
+        out.writeByte(sid.getIsPrincipal() ? 1 : 0);
+        writeString(out, sid.getSid());
+      }
+
+      for (AclDomainEntityClass domainEntityClass : domainEntityClasses)
+      {
+        out.writeLong(domainEntityClass.getId());
+        writeString(out, domainEntityClass.getClazz());
+      }
+
+      for (int i = 0; i < domainEntityRecords.size(); i++)
+      {
+        out.writeLong(domainEntityRecords.get(i, 0));
+        out.writeLong(domainEntityRecords.get(i, 1));
+        out.writeLong(domainEntityRecords.get(i, 2));
+        out.writeLong(domainEntityRecords.get(i, 3));
+        out.writeByte((int) domainEntityRecords.get(i, 4));
+      }
+
+      for (Integer position : domainEntityIndex)
+        out.writeInt(position);
+
+      for (Integer position : entryOrder)
+      {
+        out.writeLong(entryRecords.get(position, 0));
+        out.writeLong(entryRecords.get(position, 1));
+        out.writeLong(entryRecords.get(position, 2));
+      }
+    }
+    Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  public long getCreatedAt()
+  {
+    return createdAt;
+  }
+
+  /**
+   * Marks domain entities as modified or deleted after the snapshot was taken.
+   */
+  @Requires("domainEntityIds != null")
+  public void markStale(long[] domainEntityIds)
+  {
+    for (long domainEntityId : domainEntityIds)
+      staleDomainEntityIds.add(domainEntityId);
+  }
+
+  /**
+   * @return domain entity id or null if it's unknown to the snapshot
+   */
+  @Requires({
+      "clazz != null",
+      "entityId != null"
+  })
+  public Long getDomainEntityId(
+      String clazz,
+      Long entityId
+  )
+  {
+    final Long domainEntityClassId = domainEntityClassIds.get(clazz);
+    if (null == domainEntityClassId)
+      return null;
+
+    int low = 0;
+    int high = domainEntityCount - 1;
+    while (low <= high)
+    {
+      final int middle = (low + high) >>> 1;
+      final int record = domainEntityOffset
+          + buffer.getInt(domainEntityIndexOffset + middle * DOMAIN_ENTITY_INDEX_RECORD_SIZE) * DOMAIN_ENTITY_RECORD_SIZE;
+      int cmp = Long.compare(buffer.getLong(record + 8), domainEntityClassId);
+      if (0 == cmp)
+        cmp = Long.compare(buffer.getLong(record + 16), entityId);
+
+      if (cmp < 0)
+        low = middle + 1;
+      else if (cmp > 0)
+        high = middle - 1;
+      else
+      {
+        final long result = buffer.getLong(record);
+        return staleDomainEntityIds.contains(result) ? null : result;
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * Evaluates granting entries of the user on the domain entity and its ancestors.
+   *
+   * @return null if the answer can't be given by the snapshot, e.g. the path to the root touches stale domain entities
+   */
+  @Requires({
+      "domainEntityId != null",
+      "userId != null"
+  })
+  public Boolean hasPermission(
+      Long domainEntityId,
+      long mask,
+      String userId
+  )
+  {
+    final Long grantingDomainEntityId = getGrantingDomainEntityId(domainEntityId, mask, userId);
+    return (null == grantingDomainEntityId) ? null : NOT_GRANTED != grantingDomainEntityId;
+  }
+
+  /**
+   * Evaluates like {@link #hasPermission(Long, long, String)} and tells which entry decided.
+   *
+   * @return the domain entity (the given one or its ancestor) whose entry grants the mask, {@link #NOT_GRANTED}
+   *         if there is none, null if the answer can't be given by the snapshot
+   */
+  @Requires({
+      "domainEntityId != null",
+      "userId != null"
+  })
+  public Long getGrantingDomainEntityId(
+      Long domainEntityId,
+      long mask,
+      String userId
+  )
+  {
+    final Long sidId = principalSidIds.get(userId);
+    if (null == sidId)
+      return null;
+
+    long currentId = domainEntityId;
+    while (true)
+    {
+      if (staleDomainEntityIds.contains(currentId))
+        return null;
+
+      final int record = findDomainEntityRecord(currentId);
+      if (record < 0)
+        return null;
+
+      if (hasGrantingEntry(currentId, sidId, mask))
+        return currentId;
+
+      final long parentId = buffer.getLong(record + 24);
+      if (0 == buffer.get(record + 32) || NO_PARENT == parentId)
+        return NOT_GRANTED;
+
+      currentId = parentId;
+    }
+  }
+
+  private int findDomainEntityRecord(long domainEntityId)
+  {
+    int low = 0;
+    int high = domainEntityCount - 1;
+    while (low <= high)
+    {
+      final int middle = (low + high) >>> 1;
+      final int record = domainEntityOffset + middle * DOMAIN_ENTITY_RECORD_SIZE;
+      final int cmp = Long.compare(buffer.getLong(record), domainEntityId);
+      if (cmp < 0)
+        low = middle + 1;
+      else if (cmp > 0)
+        high = middle - 1;
+      else
+        return record;
+    }
+
+    return -1;
+  }
+
+  private boolean hasGrantingEntry(
+      long domainEntityId,
+      long sidId,
+      long mask
+  )
+  {
+    // lower bound of (domainEntityId, sidId)
+    int low = 0;
+    int high = entryCount;
+    while (low < high)
+    {
+      final int middle = (low + high) >>> 1;
+      final int record = entryOffset + middle * ENTRY_RECORD_SIZE;
+      int cmp = Long.compare(buffer.getLong(record), domainEntityId);
+      if (0 == cmp)
+        cmp = Long.compare(buffer.getLong(record + 8), sidId);
+      if (cmp < 0)
+        low = middle + 1;
+      else
+        high = middle;
+    }
+
+    for (int i = low; i < entryCount; i++)
+    {
+      final int record = entryOffset + i * ENTRY_RECORD_SIZE;
+      if (buffer.getLong(record) != domainEntityId || buffer.getLong(record + 8) != sidId)
+        break;
+      if ((buffer.getLong(record + 16) & mask) == mask)
+        return true;
+    }
+
+    return false;
+  }
+
+  /**
+   * Growable table of long columns, a fraction of the memory of the persistent objects it's filled from.
+   */
+  private static class Records
+  {
+    private final int columnCount;
+    private long[] values;
+    private int size;
+
+    private Records(int columnCount)
+    {
+      this.columnCount = columnCount;
+      values = new long[1024 * columnCount];
+    }
+
+    private void add(long... record)
+    {
+      if ((size + 1) * columnCount > values.length)
+      {
+        // far beyond what a snapshot can hold anyway
+        if (values.length > Integer.MAX_VALUE / 2)
+          throw new IllegalStateException("ACL snapshot can't be mapped.");
+        values = Arrays.copyOf(values, values.length * 2);
+      }
+      System.arraycopy(record, 0, values, size * columnCount, columnCount);
+      size++;
+    }
+
+    private long get(
+        int row,
+        int column
+    )
+    {
+      return values[row * columnCount + column];
+    }
+
+    private int size()
+    {
+      return size;
+    }
+  }
+
+  private static void writeString(
+      DataOutputStream out,
+      String value
+  )
+      throws
+      IOException
+  {
+    final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(ByteBuffer buffer)
+  {
+    final byte[] bytes = new byte[buffer.getInt()];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}